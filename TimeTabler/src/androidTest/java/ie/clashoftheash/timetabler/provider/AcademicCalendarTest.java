@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.provider;
+
+import java.util.Calendar;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the day arithmetic of AcademicCalendar and TimetableUtils against
+ * the Calendar based versions it replaced, over random times
+ */
+public class AcademicCalendarTest extends TestCase {
+
+	private static final long MILLIS_IN_DAY = 24 * 3600 * 1000L;
+
+	/**
+	 * Times are picked between 1950 and 2100
+	 */
+	private static final long MIN_TIME = -631152000000L;
+	private static final long MAX_TIME = 4102444800000L;
+
+	private static final int TIMES = 20000;
+
+	private final Random mRandom = new Random(2013);
+
+	public void testFirstMonday() {
+		for (int i = 0; i < TIMES; i++) {
+			long now = randomTime();
+
+			assertEquals("First Monday for " + now, getFirstMonday(now),
+					new AcademicCalendar(now).getFirstMonday());
+		}
+	}
+
+	/**
+	 * Days around the start of the academic year, including Mondays before
+	 * 1st October, as { year, month, day, first Monday year, month, day,
+	 * week }
+	 */
+	public void testFirstMondayTable() {
+		int[][] cases = { { 2024, Calendar.SEPTEMBER, 30, 2024,
+				Calendar.SEPTEMBER, 30, 1 },
+				{ 2024, Calendar.SEPTEMBER, 29, 2023, Calendar.SEPTEMBER, 25,
+						1 },
+				{ 2019, Calendar.SEPTEMBER, 30, 2019, Calendar.SEPTEMBER, 30,
+						1 },
+				{ 2018, Calendar.OCTOBER, 1, 2018, Calendar.SEPTEMBER, 24, 2 },
+				{ 2018, Calendar.SEPTEMBER, 23, 2017, Calendar.SEPTEMBER, 25,
+						52 },
+				{ 2024, Calendar.JANUARY, 1, 2023, Calendar.SEPTEMBER, 25, 15 },
+				{ 2025, Calendar.MARCH, 15, 2024, Calendar.SEPTEMBER, 30,
+						24 } };
+
+		for (int[] c : cases) {
+			// Midday so the time isn't the first Monday itself
+			long now = getTime(c[0], c[1], c[2]) + MILLIS_IN_DAY / 2;
+			AcademicCalendar calendar = new AcademicCalendar(now);
+
+			assertEquals("First Monday for " + now, getTime(c[3], c[4], c[5]),
+					calendar.getFirstMonday());
+			assertEquals("Week of " + now, c[6], calendar.getWeekNumber(now));
+		}
+	}
+
+	public void testWeekNumber() {
+		for (int i = 0; i < TIMES / 100; i++) {
+			long now = randomTime();
+			AcademicCalendar calendar = new AcademicCalendar(now);
+
+			for (int j = 0; j < 100; j++) {
+				// Mostly times within a few years of now
+				long time = j % 10 == 0 ? randomTime() : nearbyTime(now,
+						3 * 365);
+
+				assertEquals("Week of " + time + " for " + now,
+						getWeekNumber(time, now), calendar.getWeekNumber(time));
+			}
+		}
+	}
+
+	public void testSameDay() {
+		for (int i = 0; i < TIMES; i++) {
+			long t1 = randomTime();
+			long t2 = nearbyTime(t1);
+
+			assertEquals("Same day " + t1 + ", " + t2, isSameDay(t1, t2),
+					TimetableUtils.isSameDay(t1, t2));
+		}
+	}
+
+	public void testDayAfter() {
+		for (int i = 0; i < TIMES; i++) {
+			long t1 = randomTime();
+			long t2 = nearbyTime(t1);
+
+			assertEquals("Day after " + t1 + ", " + t2,
+					isSameDay(t1, addDays(t2, -1)),
+					TimetableUtils.isDayAfter(t1, t2));
+		}
+	}
+
+	public void testDayBefore() {
+		for (int i = 0; i < TIMES; i++) {
+			long t1 = randomTime();
+			long t2 = nearbyTime(t1);
+
+			assertEquals("Day before " + t1 + ", " + t2,
+					isSameDay(t1, addDays(t2, 1)),
+					TimetableUtils.isDayBefore(t1, t2));
+		}
+	}
+
+	private long randomTime() {
+		return MIN_TIME + (long) (mRandom.nextDouble() * (MAX_TIME - MIN_TIME));
+	}
+
+	/**
+	 * @return time within two days either side of the time
+	 */
+	private long nearbyTime(long time) {
+		return nearbyTime(time, 2);
+	}
+
+	/**
+	 * @return time within the number of days either side of the time
+	 */
+	private long nearbyTime(long time, int days) {
+		double offset = (mRandom.nextDouble() - 0.5) * 2 * days;
+		return time + (long) (offset * MILLIS_IN_DAY);
+	}
+
+	/**
+	 * The latest first Monday on or before the time, each found with Calendar
+	 * by going back from 1st October to the Monday before it
+	 */
+	private static long getFirstMonday(long now) {
+		Calendar cal = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		cal.setTimeInMillis(now);
+
+		for (int year = cal.get(Calendar.YEAR);; year--) {
+			cal.clear();
+			cal.set(year, Calendar.OCTOBER, 1);
+
+			int subtract = (5 + cal.get(Calendar.DAY_OF_WEEK)) % 7;
+			if (subtract == 0)
+				subtract = 7;
+
+			cal.add(Calendar.DAY_OF_YEAR, -subtract);
+			if (cal.getTimeInMillis() <= now)
+				return cal.getTimeInMillis();
+		}
+	}
+
+	private static long getTime(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		cal.clear();
+		cal.set(year, month, day);
+
+		return cal.getTimeInMillis();
+	}
+
+	/**
+	 * The week number counted with Calendar, the number of Monday based weeks
+	 * since the first Monday wrapped to 52 weeks
+	 */
+	private static int getWeekNumber(long time, long now) {
+		Calendar cal = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		cal.setFirstDayOfWeek(Calendar.MONDAY);
+		cal.setTimeInMillis(time);
+
+		// Go back to midnight on the Monday of the week
+		cal.set(Calendar.DAY_OF_WEEK, Calendar.MONDAY);
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+
+		long weeks = (cal.getTimeInMillis() - getFirstMonday(now))
+				/ (7 * MILLIS_IN_DAY);
+		int week = (int) (weeks % 52);
+		if (week < 0)
+			week += 52;
+
+		return 1 + week;
+	}
+
+	private static boolean isSameDay(long t1, long t2) {
+		Calendar c1 = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		c1.setTimeInMillis(t1);
+
+		Calendar c2 = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		c2.setTimeInMillis(t2);
+
+		return c1.get(Calendar.ERA) == c2.get(Calendar.ERA)
+				&& c1.get(Calendar.YEAR) == c2.get(Calendar.YEAR)
+				&& c1.get(Calendar.MONTH) == c2.get(Calendar.MONTH)
+				&& c1.get(Calendar.DAY_OF_MONTH) == c2
+						.get(Calendar.DAY_OF_MONTH);
+	}
+
+	private static long addDays(long time, int days) {
+		Calendar cal = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		cal.setTimeInMillis(time);
+		cal.add(Calendar.DAY_OF_YEAR, days);
+
+		return cal.getTimeInMillis();
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Reads the agenda while the sync adapter rewrites every class, to measure
+ * how long agenda queries take while a sync is writing and check they don't
+ * wait for it
+ */
+@LargeTest
+public class TimetableProviderStressTest extends
+		ProviderTestCase2<TimetableProviderStressTest.PausingProvider> {
+
+	private static final String TAG = "TimetableProviderStressTest";
+
+	private static final long MILLIS_IN_HOUR = 3600 * 1000L;
+	private static final long MILLIS_IN_DAY = 24 * MILLIS_IN_HOUR;
+
+	/**
+	 * Classes synced, 5 days of 8 hourly classes in each of 2 semesters
+	 */
+	private static final int CLASSES_PER_DAY = 8;
+	private static final int DAYS = 5;
+	private static final int SEMESTERS = 2;
+
+	/**
+	 * Weeks of semester 1 and semester 2
+	 */
+	private static final long SEMESTER_1_WEEKS = 0xfffL;
+	private static final long SEMESTER_2_WEEKS = 0xfffL << 20;
+
+	/**
+	 * Number of times every class is rewritten while the agenda is read
+	 */
+	private static final int SYNCS = 10;
+
+	/**
+	 * Longest an agenda query may take while a sync is writing
+	 */
+	private static final long MAX_READ_MILLIS = 500;
+
+	/**
+	 * Longest to wait for a paused sync, or for a read while it's paused
+	 */
+	private static final long PAUSE_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Provider which can hold a batch part way through, with its
+	 * transaction open, as a long sync would
+	 */
+	public static class PausingProvider extends TimetableProvider {
+
+		private volatile CountDownLatch mPaused, mResume;
+
+		/**
+		 * Pauses the next insert until the returned latch is counted down
+		 */
+		CountDownLatch pauseNextInsert() {
+			mPaused = new CountDownLatch(1);
+			mResume = new CountDownLatch(1);
+			return mResume;
+		}
+
+		/**
+		 * @return whether an insert paused within the timeout
+		 */
+		boolean awaitPaused(long timeout) throws InterruptedException {
+			return mPaused.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public Uri insert(Uri uri, ContentValues values) {
+			CountDownLatch resume = mResume;
+			if (resume != null) {
+				mResume = null;
+				mPaused.countDown();
+
+				try {
+					resume.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			return super.insert(uri, values);
+		}
+	}
+
+	public TimetableProviderStressTest() {
+		super(PausingProvider.class, Timetable.AUTHORITY);
+	}
+
+	/**
+	 * Reads the agenda within the horizon while a sync's transaction is held
+	 * open. The read uses the horizon from before the sync, so it mustn't
+	 * wait for the sync to be committed.
+	 */
+	public void testAgendaReadsDontWaitForSync() throws Exception {
+		applySync(0);
+
+		long now = System.currentTimeMillis();
+		final Uri window = ContentUris.appendId(
+				ContentUris.appendId(
+						Timetable.Events.CONTENT_AGENDA_URI_BASE.buildUpon(),
+						now), now + 7 * MILLIS_IN_DAY).build();
+
+		CountDownLatch resume = getProvider().pauseNextInsert();
+		final boolean[] syncFailed = { false };
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					applySync(1);
+				} catch (Exception e) {
+					Log.e(TAG, "Sync failed", e);
+					syncFailed[0] = true;
+				}
+			}
+		});
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAgenda(window);
+			}
+		});
+
+		writer.start();
+		try {
+			assertTrue("Sync didn't start",
+					getProvider().awaitPaused(PAUSE_TIMEOUT_MILLIS));
+
+			reader.start();
+			reader.join(PAUSE_TIMEOUT_MILLIS);
+			assertFalse("Agenda read waited for a sync", reader.isAlive());
+		} finally {
+			resume.countDown();
+			writer.join();
+			reader.join();
+		}
+
+		assertFalse("Sync failed while the agenda was read", syncFailed[0]);
+	}
+
+	public void testAgendaReadsDuringSync() throws Exception {
+		applySync(0);
+
+		final boolean[] syncFailed = { false };
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int sync = 1; sync <= SYNCS; sync++)
+						applySync(sync);
+				} catch (Exception e) {
+					Log.e(TAG, "Sync failed", e);
+					syncFailed[0] = true;
+				}
+			}
+		});
+
+		long firstMonday = TimetableUtils.getFirstMonday();
+		Uri window = ContentUris.appendId(
+				ContentUris.appendId(
+						Timetable.Events.CONTENT_AGENDA_URI_BASE.buildUpon(),
+						firstMonday), firstMonday + 28 * MILLIS_IN_DAY)
+				.build();
+
+		ArrayList<Long> latencies = new ArrayList<Long>();
+		writer.start();
+		while (writer.isAlive()) {
+			long start = System.nanoTime();
+			int events = readAgenda(window);
+			latencies.add((System.nanoTime() - start) / 1000000);
+
+			assertTrue("Agenda was empty during a sync", events > 0);
+		}
+		writer.join();
+
+		assertFalse("Sync failed while the agenda was read", syncFailed[0]);
+		assertFalse("Agenda wasn't read during a sync", latencies.isEmpty());
+
+		Long[] sorted = latencies.toArray(new Long[latencies.size()]);
+		Arrays.sort(sorted);
+		long median = sorted[sorted.length / 2];
+		long max = sorted[sorted.length - 1];
+		Log.i(TAG, sorted.length + " agenda reads during " + SYNCS
+				+ " syncs, median " + median + " ms, max " + max + " ms");
+
+		assertTrue("Agenda read took " + max + " ms during a sync",
+				max <= MAX_READ_MILLIS);
+	}
+
+	/**
+	 * Reads every page of the agenda in the window
+	 *
+	 * @return number of events read
+	 */
+	private int readAgenda(Uri window) {
+		int events = 0;
+		long afterStart = -1, afterId = -1;
+
+		while (true) {
+			Uri.Builder page = window.buildUpon();
+			if (afterId != -1)
+				page.appendQueryParameter(
+						Timetable.Events.QUERY_PARAMETER_AFTER_START,
+						String.valueOf(afterStart)).appendQueryParameter(
+						Timetable.Events.QUERY_PARAMETER_AFTER_ID,
+						String.valueOf(afterId));
+
+			Cursor c = getMockContentResolver().query(page.build(),
+					TimetableProvider.READ_EVENT_PROJECTION, null, null, null);
+			try {
+				int count = c.getCount();
+				events += count;
+				if (count < Timetable.Events.AGENDA_PAGE_SIZE)
+					return events;
+
+				c.moveToLast();
+				afterStart = c
+						.getLong(TimetableProvider.READ_EVENT_START_INDEX);
+				afterId = c.getLong(TimetableProvider.READ_EVENT_ID_INDEX);
+			} finally {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes every class in a single batch, as the sync adapter does. Each
+	 * sync moves every class to a different location so its events are
+	 * rewritten.
+	 */
+	private void applySync(int sync) throws Exception {
+		long firstMonday = TimetableUtils.getFirstMonday();
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+
+		for (int semester = 1; semester <= SEMESTERS; semester++) {
+			long weeks = semester == 1 ? SEMESTER_1_WEEKS : SEMESTER_2_WEEKS;
+
+			for (int day = 0; day < DAYS; day++) {
+				for (int hour = 9; hour < 9 + CLASSES_PER_DAY; hour++) {
+					long start = firstMonday + day * MILLIS_IN_DAY + hour
+							* MILLIS_IN_HOUR;
+
+					ContentValues values = new ContentValues();
+					values.put(Timetable.Classes.COLUMN_NAME_EVENT_TYPE,
+							"Lecture");
+					values.put(Timetable.Classes.COLUMN_NAME_MODULE, "CA"
+							+ (100 + hour));
+					values.put(Timetable.Classes.COLUMN_NAME_LECTURER,
+							"Lecturer " + day);
+					values.put(Timetable.Classes.COLUMN_NAME_LOCATION, "L"
+							+ sync);
+					values.put(Timetable.Classes.COLUMN_NAME_START, start);
+					values.put(Timetable.Classes.COLUMN_NAME_END, start + 50
+							* 60 * 1000L);
+					values.put(Timetable.Classes.COLUMN_NAME_SEMESTER,
+							semester);
+					values.put(Timetable.Classes.COLUMN_NAME_DAY, "D" + day);
+					values.put(Timetable.Classes.COLUMN_NAME_TIME,
+							TimetableUtils.getDBTimeFormat(start));
+					values.put(Timetable.Classes.COLUMN_NAME_WEEKS, weeks);
+					values.put(Timetable.Classes.COLUMN_NAME_SYNC_HASH,
+							(long) sync);
+
+					// A class with the same key replaces the class of the
+					// previous sync
+					operations.add(ContentProviderOperation
+							.newInsert(Timetable.Classes.CONTENT_URI)
+							.withValues(values).build());
+				}
+			}
+		}
+
+		getProvider().applyBatch(operations);
+	}
+
+}
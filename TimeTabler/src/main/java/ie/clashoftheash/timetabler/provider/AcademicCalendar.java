@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.provider;
+
+import java.util.Calendar;
+
+/**
+ * The days and weeks of an academic year. Times are milliseconds since epoch
+ * in UTC, as held in the database, and are compared as whole days since epoch
+ * so answering a question doesn't allocate.
+ * <p>
+ * The calendar for the current academic year is worked out once and kept
+ * until the year ends.
+ */
+final class AcademicCalendar {
+
+	private static final long MILLIS_IN_DAY = 24 * 3600 * 1000L;
+
+	/**
+	 * Number of weeks in an academic year
+	 */
+	private static final int WEEKS = 52;
+
+	/**
+	 * Day of the week of the epoch counted from Monday, 1st January 1970 was a
+	 * Thursday
+	 */
+	private static final int EPOCH_DAY_OF_WEEK = 3;
+
+	private static volatile AcademicCalendar sCurrent;
+
+	/**
+	 * First day of the first week of semester 1
+	 */
+	private final long mFirstMondayDay;
+
+	/**
+	 * The academic year runs from its first Monday up to but not including
+	 * the first Monday of the following year. That Monday can be up to a week
+	 * before 1st October.
+	 */
+	private final long mStart, mEnd;
+
+	AcademicCalendar(long time) {
+		Calendar cal = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		cal.setTimeInMillis(time);
+
+		// If before this year's first Monday the year started last year
+		int year = cal.get(Calendar.YEAR);
+		long day = toDay(time);
+		long first = getFirstMondayDay(cal, year);
+		if (day < first) {
+			year--;
+			first = getFirstMondayDay(cal, year);
+		}
+
+		mFirstMondayDay = first;
+		mStart = first * MILLIS_IN_DAY;
+		mEnd = getFirstMondayDay(cal, year + 1) * MILLIS_IN_DAY;
+	}
+
+	/**
+	 * @return calendar for the current academic year
+	 */
+	static AcademicCalendar getCurrent() {
+		long now = System.currentTimeMillis();
+
+		AcademicCalendar current = sCurrent;
+		if (current == null || now < current.mStart || now >= current.mEnd) {
+			current = new AcademicCalendar(now);
+			sCurrent = current;
+		}
+
+		return current;
+	}
+
+	/**
+	 * @return milliseconds since epoch of 00:00:00 on the first Monday of
+	 *         semester 1
+	 */
+	long getFirstMonday() {
+		return mFirstMondayDay * MILLIS_IN_DAY;
+	}
+
+	/**
+	 * @return academic week of the time, between 1 and 52 inclusive. Times
+	 *         outside the academic year wrap around.
+	 */
+	int getWeekNumber(long time) {
+		return 1 + (int) floorMod(floorDiv(toDay(time) - mFirstMondayDay, 7),
+				WEEKS);
+	}
+
+	/**
+	 * @return day since epoch of the first Monday of the academic year
+	 *         starting in the October of the year
+	 */
+	private static long getFirstMondayDay(Calendar cal, int year) {
+		cal.clear();
+		cal.set(year, Calendar.OCTOBER, 1);
+
+		// If 1st Oct is Mon we want to subtract a week
+		// Otherwise we want to go back to Monday
+		long first = toDay(cal.getTimeInMillis());
+		int subtract = getDayOfWeek(first);
+		if (subtract == 0)
+			subtract = 7;
+
+		return first - subtract;
+	}
+
+	/**
+	 * @return number of whole days since epoch of the time
+	 */
+	static long toDay(long time) {
+		return floorDiv(time, MILLIS_IN_DAY);
+	}
+
+	/**
+	 * @return milliseconds since the start of the day of the time
+	 */
+	static long getMillisOfDay(long time) {
+		return floorMod(time, MILLIS_IN_DAY);
+	}
+
+	/**
+	 * @return day of the week of a day since epoch, 0 for Monday up to 6 for
+	 *         Sunday
+	 */
+	private static int getDayOfWeek(long day) {
+		return (int) floorMod(day + EPOCH_DAY_OF_WEEK, 7);
+	}
+
+	/**
+	 * Division rounding towards negative infinity, so times before the epoch
+	 * fall on the right day
+	 */
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x < 0) != (y < 0)))
+			q--;
+
+		return q;
+	}
+
+	private static long floorMod(long x, long y) {
+		return x - floorDiv(x, y) * y;
+	}
+
+}
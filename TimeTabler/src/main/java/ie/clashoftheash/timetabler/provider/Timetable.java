@@ -100,6 +100,86 @@ public final class Timetable {
         public static final Uri CONTENT_ID_URI_PATTERN = Uri.parse(SCHEME
                 + AUTHORITY + PATH_EVENT_ID + "/#");
 
+        /**
+         * Path part for the Events After URI
+         */
+        private static final String PATH_EVENTS_AFTER = "/events/after/";
+
+        /**
+         * 0-relative position of the time segment in the path part of an
+         * events after URI
+         */
+        public static final int EVENTS_AFTER_TIME_PATH_POSITION = 2;
+
+        /**
+         * The content URI base for the events which start after a time, in
+         * order of start. Callers must append a time in milliseconds since
+         * epoch in UTC. Only the first event is returned unless
+         * {@link #QUERY_PARAMETER_LIMIT} is given. The events of classes are
+         * created up to the last event returned if they aren't held yet.
+         */
+        public static final Uri CONTENT_AFTER_URI_BASE = Uri.parse(SCHEME
+                + AUTHORITY + PATH_EVENTS_AFTER);
+
+        /**
+         * Path part for the Agenda URI
+         */
+        private static final String PATH_EVENTS_AGENDA = "/events/agenda/";
+
+        /**
+         * 0-relative position of the segment holding the first time of the
+         * range in the path part of an agenda URI
+         */
+        public static final int AGENDA_FROM_PATH_POSITION = 2;
+
+        /**
+         * 0-relative position of the segment holding the last time of the
+         * range in the path part of an agenda URI
+         */
+        public static final int AGENDA_TO_PATH_POSITION = 3;
+
+        /**
+         * The content URI base for the events shown in the agenda, those the
+         * user hasn't deleted which start within a range of times, inclusive.
+         * Callers must append the first and then the last time of the range in
+         * milliseconds since epoch in UTC. The events of classes within the
+         * range are created if they aren't held yet.
+         * <p>
+         * Events are returned a page at a time in order of start and then id,
+         * the sort order given is ignored. A page holds at most
+         * {@link #QUERY_PARAMETER_LIMIT} events, or
+         * {@link #AGENDA_PAGE_SIZE} if it isn't given. The following page is
+         * returned by giving the start and id of the last event of a page in
+         * {@link #QUERY_PARAMETER_AFTER_START} and
+         * {@link #QUERY_PARAMETER_AFTER_ID}. A page with fewer events than
+         * asked for is the last.
+         */
+        public static final Uri CONTENT_AGENDA_URI_BASE = Uri.parse(SCHEME
+                + AUTHORITY + PATH_EVENTS_AGENDA);
+
+        /**
+         * Most events in a page of an agenda URI without a limit
+         */
+        public static final int AGENDA_PAGE_SIZE = 100;
+
+        /**
+         * Query parameter for the most events returned by an events after or
+         * agenda URI
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter for the start of the last event of the previous page
+         * of an agenda URI, given along with {@link #QUERY_PARAMETER_AFTER_ID}
+         */
+        public static final String QUERY_PARAMETER_AFTER_START = "after_start";
+
+        /**
+         * Query parameter for the id of the last event of the previous page of
+         * an agenda URI, given along with {@link #QUERY_PARAMETER_AFTER_START}
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
 		/*
 		 * MIME type definitions
 		 */
@@ -208,12 +288,22 @@ public final class Timetable {
         public static final String COLUMN_NAME_TIME = "time";
 
         /**
-         * Column name for sync data of event
+         * Column name for a fingerprint of the data the sync adapter took the
+         * event from, events with the same data have the same fingerprint
          * <p/>
-         * Type: TEXT
+         * Type: INTEGER (64 bit hash)
+         * </P>
+         */
+        public static final String COLUMN_NAME_SYNC_HASH = "sync_hash";
+
+        /**
+         * Column name for the id of the class the event is an occurrence of,
+         * null if the event wasn't created from a class
+         * <p/>
+         * Type: INTEGER
          * </P>
          */
-        public static final String COLUMN_NAME_SYNC_DATA = "sync_data";
+        public static final String COLUMN_NAME_CLASS_ID = "class_id";
 
         /**
          * Column name for flag if user created event
@@ -237,4 +327,243 @@ public final class Timetable {
         public static final String DEFAULT_SORT_ORDER = COLUMN_NAME_START + " ASC";
 
     }
+
+    /**
+     * Classes table contract. Each class on the timetable is held once along
+     * with the weeks it takes place on, the provider creates an event for
+     * each of those weeks and keeps them in line with the class. Only the sync
+     * adapter should write to this table.
+     * <p>
+     * Events are only held for the weeks of a horizon around the time of the
+     * last sync, along with any the user has added notes to or deleted. The
+     * horizon is extended over just the times the agenda and events after
+     * URIs ask for beyond it, the events URI only sees the events already
+     * held.
+     */
+    public static final class Classes implements BaseColumns {
+
+        private Classes() {
+        }
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "classes";
+
+        /**
+         * Path part for the Classes URI
+         */
+        private static final String PATH_CLASSES = "/classes";
+
+        /**
+         * Path part for the Class ID URI
+         */
+        private static final String PATH_CLASS_ID = "/classes/";
+
+        /**
+         * 0-relative position of a class ID segment in the path part of a
+         * class ID URI
+         */
+        public static final int CLASS_ID_PATH_POSITION = 1;
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY
+                + PATH_CLASSES);
+
+        /**
+         * The content URI base for a single class. Callers must append a
+         * numeric class id to this Uri to retrieve a class
+         */
+        public static final Uri CONTENT_ID_URI_BASE = Uri.parse(SCHEME
+                + AUTHORITY + PATH_CLASS_ID);
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of
+         * classes.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.clashoftheash.timetabler.class";
+
+        /**
+         * The MIME type of a {@link #CONTENT_URI} sub-directory of a single
+         * class.
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.clashoftheash.timetabler.class";
+
+        /**
+         * Column name for the type of class
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_EVENT_TYPE = Events.COLUMN_NAME_EVENT_TYPE;
+
+        /**
+         * Column name for the module code and name
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_MODULE = Events.COLUMN_NAME_MODULE;
+
+        /**
+         * Column name for the lecturer(s)
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_LECTURER = Events.COLUMN_NAME_LECTURER;
+
+        /**
+         * Column name for the location(s)
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_LOCATION = Events.COLUMN_NAME_LOCATION;
+
+        /**
+         * Column name for the start timestamp of the class in the first week
+         * of the academic year
+         * <p/>
+         * Type: UNSIGNED INT (time since epoch in ms)
+         * </P>
+         */
+        public static final String COLUMN_NAME_START = Events.COLUMN_NAME_START;
+
+        /**
+         * Column name for the end timestamp of the class in the first week of
+         * the academic year
+         * <p/>
+         * Type: UNSIGNED INT (time since epoch in ms)
+         * </P>
+         */
+        public static final String COLUMN_NAME_END = Events.COLUMN_NAME_END;
+
+        /**
+         * Column name for the semester
+         * <p/>
+         * Type: TINYINT(1)
+         * </P>
+         */
+        public static final String COLUMN_NAME_SEMESTER = Events.COLUMN_NAME_SEMESTER;
+
+        /**
+         * Column name for the day class is on
+         * <p/>
+         * Type: CHAR(3)
+         * </P>
+         */
+        public static final String COLUMN_NAME_DAY = Events.COLUMN_NAME_DAY;
+
+        /**
+         * Column name for the time of class
+         * <p/>
+         * Type: CHAR(5)
+         * </P>
+         */
+        public static final String COLUMN_NAME_TIME = Events.COLUMN_NAME_TIME;
+
+        /**
+         * Column name for the academic weeks the class takes place on. Bit
+         * 0 is set if it takes place in week 1, up to bit 51 for week 52.
+         * <p/>
+         * Type: INTEGER (bitmask)
+         * </P>
+         */
+        public static final String COLUMN_NAME_WEEKS = "weeks";
+
+        /**
+         * Column name for a fingerprint of the data the sync adapter took the
+         * class from
+         * <p/>
+         * Type: INTEGER (64 bit hash)
+         * </P>
+         */
+        public static final String COLUMN_NAME_SYNC_HASH = Events.COLUMN_NAME_SYNC_HASH;
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = COLUMN_NAME_START + " ASC";
+
+    }
+
+    /**
+     * Suggestions table contract. Holds each distinct module and lecturer of
+     * the events so they can be suggested as the user types. The provider keeps
+     * this table up to date as events are written, it can only be queried.
+     */
+    public static final class Suggestions implements BaseColumns {
+
+        private Suggestions() {
+        }
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "suggestions";
+
+        /**
+         * Path part for the Suggestions URI
+         */
+        private static final String PATH_SUGGESTIONS = "/suggestions";
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY
+                + PATH_SUGGESTIONS);
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of
+         * suggestions.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.clashoftheash.timetabler.suggestion";
+
+        /**
+         * Types of suggestion
+         */
+        public static final int TYPE_MODULE = 0;
+        public static final int TYPE_LECTURER = 1;
+
+        /**
+         * Column name for the type of suggestion, one of the TYPE constants
+         * <p/>
+         * Type: TINYINT(1)
+         * </P>
+         */
+        public static final String COLUMN_NAME_TYPE = "type";
+
+        /**
+         * Column name for the suggested value, compared without case
+         * <p/>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String COLUMN_NAME_VALUE = "value";
+
+        /**
+         * Selection matching suggestions of a type which start with a prefix.
+         * Takes the type, the prefix and the prefix followed by
+         * {@link #PREFIX_END} as arguments. Matching on a range lets the
+         * index on the table be used, which isn't possible with LIKE '%...'.
+         */
+        public static final String SELECTION_PREFIX = COLUMN_NAME_TYPE
+                + " = ? AND " + COLUMN_NAME_VALUE + " >= ? AND "
+                + COLUMN_NAME_VALUE + " < ?";
+
+        /**
+         * Appended to a prefix to give the upper bound of
+         * {@link #SELECTION_PREFIX}
+         */
+        public static final String PREFIX_END = "\uffff";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = COLUMN_NAME_VALUE + " ASC";
+
+    }
 }
\ No newline at end of file
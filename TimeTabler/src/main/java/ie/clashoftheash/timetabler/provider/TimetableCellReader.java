@@ -0,0 +1,530 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.provider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Reads the cells of a timetable page while it is being downloaded. Only the
+ * timetable itself, the table with a border of 1, is processed. Everything
+ * else on the page is skipped without being stored, so memory use is bounded
+ * by the size of a single cell rather than the size of the page.
+ * <p>
+ * Each call to {@link #next()} returns the next event in the timetable. After
+ * a {@link #CELL} event the contents of the cell can be read until the
+ * following call to {@link #next()}.
+ * <p>
+ * A class cell holds 3 tables each with a single row of 2 cells. The 1st holds
+ * the event type and room, the 2nd the lecturer and module name and the 3rd
+ * the module code and weeks.
+ */
+class TimetableCellReader implements Closeable {
+
+	/**
+	 * The end of the timetable has been reached
+	 */
+	static final int END = 0;
+
+	/**
+	 * A row of the timetable has started
+	 */
+	static final int ROW_START = 1;
+
+	/**
+	 * A cell of the timetable has been read
+	 */
+	static final int CELL = 2;
+
+	/**
+	 * A row of the timetable has ended
+	 */
+	static final int ROW_END = 3;
+
+	/**
+	 * Number of tables within a class cell
+	 */
+	private static final int CELL_TABLES = 3;
+
+	private final Reader mReader;
+
+	/**
+	 * Holds the tag currently being read
+	 */
+	private final StringBuilder mTag = new StringBuilder();
+
+	/**
+	 * Events waiting to be returned from {@link #next()}
+	 */
+	private final int[] mEvents = new int[4];
+	private int mEventHead, mEventCount;
+
+	/**
+	 * Number of tables currently open and the number open at the timetable
+	 * table, 0 until the timetable is found
+	 */
+	private int mTableDepth, mTimetableDepth;
+
+	private boolean mFinished, mInRow, mInCell, mInField;
+
+	/*
+	 * Current cell
+	 */
+	private final StringBuilder mHtml = new StringBuilder();
+	private final StringBuilder mField = new StringBuilder();
+	private final String[] mFirstFields = new String[CELL_TABLES];
+	private final String[] mLastFields = new String[CELL_TABLES];
+	private int mColSpan, mRowSpan;
+
+	/**
+	 * Index of the table within the current cell and the row within that
+	 * table, -1 and 0 if no table has been found
+	 */
+	private int mTableIndex, mTableRow;
+
+	TimetableCellReader(Reader reader) {
+		mReader = reader;
+	}
+
+	/**
+	 * Reads until the next event in the timetable
+	 *
+	 * @return one of {@link #ROW_START}, {@link #CELL}, {@link #ROW_END} or
+	 *         {@link #END}
+	 * @throws IOException
+	 *             if the page can't be read
+	 */
+	int next() throws IOException {
+		while (mEventCount == 0 && !mFinished) {
+			int c = mReader.read();
+
+			if (c == -1)
+				finish();
+			else if (c == '<')
+				readTag();
+			else if (c != '\r' && c != '\n')
+				// Line breaks are dropped as the page is laid out over many
+				// lines
+				append((char) c);
+		}
+
+		if (mEventCount == 0)
+			return END;
+
+		int event = mEvents[mEventHead];
+		mEventHead = (mEventHead + 1) % mEvents.length;
+		mEventCount--;
+		return event;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mReader.close();
+	}
+
+	/**
+	 * @return html within the cell, excluding any tables within it
+	 */
+	String getHtml() {
+		return mHtml.toString().trim();
+	}
+
+	/**
+	 * @return true if the cell holds the details of a class
+	 */
+	boolean isClass() {
+		return mTableIndex >= CELL_TABLES - 1;
+	}
+
+	/**
+	 * @return number of half hours the cell spans
+	 */
+	int getColSpan() {
+		return mColSpan;
+	}
+
+	/**
+	 * @return number of rows the cell spans
+	 */
+	int getRowSpan() {
+		return mRowSpan;
+	}
+
+	String getEventType() {
+		return mFirstFields[0];
+	}
+
+	String getRoom() {
+		return mLastFields[0];
+	}
+
+	String getLecturer() {
+		return mFirstFields[1];
+	}
+
+	String getModuleName() {
+		return mLastFields[1];
+	}
+
+	String getModuleCode() {
+		return mFirstFields[2];
+	}
+
+	String getWeeks() {
+		return mLastFields[2];
+	}
+
+	/**
+	 * Appends text to the html of the cell or the field being read
+	 */
+	private void append(char c) {
+		if (mInField)
+			mField.append(c);
+		else if (mInCell && mTableDepth == mTimetableDepth)
+			mHtml.append(c);
+	}
+
+	/**
+	 * Appends markup which isn't part of the timetable's structure to the
+	 * html of the cell or the field being read
+	 */
+	private void appendTag() {
+		if (mInField)
+			mField.append('<').append(mTag).append('>');
+		else if (mInCell && mTableDepth == mTimetableDepth)
+			mHtml.append('<').append(mTag).append('>');
+	}
+
+	/**
+	 * Reads a tag, comment or declaration following a '<' and updates the
+	 * state of the timetable accordingly
+	 */
+	private void readTag() throws IOException {
+		int c = mReader.read();
+
+		if (c == '!' || c == '?') {
+			skipComment();
+			return;
+		}
+
+		if (c != '/' && !Character.isLetter(c)) {
+			// Not a tag, treat as text
+			append('<');
+			if (c != -1)
+				append((char) c);
+			return;
+		}
+
+		mTag.setLength(0);
+		mTag.append((char) c);
+
+		char quote = 0;
+		while ((c = mReader.read()) != -1) {
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'')
+				quote = (char) c;
+			else if (c == '>')
+				break;
+
+			mTag.append((char) c);
+		}
+
+		boolean end = mTag.charAt(0) == '/';
+		String name = getTagName(end ? 1 : 0);
+
+		if (end)
+			handleEndTag(name);
+		else if (name.equals("script") || name.equals("style"))
+			skipUntilEndTag(name);
+		else
+			handleStartTag(name);
+	}
+
+	private void handleStartTag(String name) {
+		if (name.equals("table")) {
+			mTableDepth++;
+
+			if (mTimetableDepth == 0) {
+				if ("1".equals(getAttribute("border")))
+					mTimetableDepth = mTableDepth;
+			} else if (mInCell && mTableDepth == mTimetableDepth + 1) {
+				mTableIndex++;
+				mTableRow = 0;
+			}
+		} else if (mTimetableDepth == 0) {
+			// Outside of the timetable
+			return;
+		} else if (name.equals("tr")) {
+			if (mTableDepth == mTimetableDepth) {
+				endCell();
+				endRow();
+				mInRow = true;
+				queue(ROW_START);
+			} else if (mInCell && mTableDepth == mTimetableDepth + 1) {
+				endField();
+				mTableRow++;
+			}
+		} else if (name.equals("td") || name.equals("th")) {
+			if (mTableDepth == mTimetableDepth) {
+				endCell();
+				if (!mInRow) {
+					mInRow = true;
+					queue(ROW_START);
+				}
+				startCell();
+			} else if (mInCell && mTableDepth == mTimetableDepth + 1) {
+				endField();
+				// Only the first row of each table holds details
+				if (mTableRow <= 1 && mTableIndex < CELL_TABLES) {
+					mField.setLength(0);
+					mInField = true;
+				}
+			}
+		} else if (!name.equals("tbody"))
+			appendTag();
+	}
+
+	private void handleEndTag(String name) {
+		if (name.equals("table")) {
+			if (mTimetableDepth != 0 && mTableDepth == mTimetableDepth) {
+				// End of the timetable, rest of the page isn't needed
+				endCell();
+				endRow();
+				mFinished = true;
+			} else if (mInCell && mTableDepth == mTimetableDepth + 1)
+				endField();
+
+			if (mTableDepth > 0)
+				mTableDepth--;
+		} else if (mTimetableDepth == 0) {
+			// Outside of the timetable
+			return;
+		} else if (name.equals("tr")) {
+			if (mTableDepth == mTimetableDepth) {
+				endCell();
+				endRow();
+			} else if (mInCell && mTableDepth == mTimetableDepth + 1)
+				endField();
+		} else if (name.equals("td") || name.equals("th")) {
+			if (mTableDepth == mTimetableDepth)
+				endCell();
+			else if (mInCell && mTableDepth == mTimetableDepth + 1)
+				endField();
+		} else if (!name.equals("tbody"))
+			appendTag();
+	}
+
+	private void startCell() {
+		mInCell = true;
+		mHtml.setLength(0);
+
+		for (int i = 0; i < CELL_TABLES; i++) {
+			mFirstFields[i] = null;
+			mLastFields[i] = null;
+		}
+
+		mTableIndex = -1;
+		mTableRow = 0;
+
+		mColSpan = getIntAttribute("colspan");
+		mRowSpan = getIntAttribute("rowspan");
+	}
+
+	private void endCell() {
+		if (!mInCell)
+			return;
+
+		endField();
+		mInCell = false;
+		queue(CELL);
+	}
+
+	private void endRow() {
+		if (!mInRow)
+			return;
+
+		mInRow = false;
+		queue(ROW_END);
+	}
+
+	private void endField() {
+		if (!mInField)
+			return;
+
+		mInField = false;
+
+		String field = mField.toString().trim();
+		if (mFirstFields[mTableIndex] == null)
+			mFirstFields[mTableIndex] = field;
+		mLastFields[mTableIndex] = field;
+	}
+
+	/**
+	 * Called when the end of the page has been reached
+	 */
+	private void finish() {
+		endCell();
+		endRow();
+		mFinished = true;
+	}
+
+	private void queue(int event) {
+		mEvents[(mEventHead + mEventCount) % mEvents.length] = event;
+		mEventCount++;
+	}
+
+	/**
+	 * Skips a comment or declaration, the opening "<!" or "<?" has already
+	 * been read
+	 */
+	private void skipComment() throws IOException {
+		int c = mReader.read();
+		int d = c == '-' ? mReader.read() : -1;
+
+		if (c == '-' && d == '-') {
+			// Comment, ends with "-->"
+			int dashes = 0;
+			while ((c = mReader.read()) != -1) {
+				if (c == '>' && dashes >= 2)
+					return;
+				dashes = c == '-' ? dashes + 1 : 0;
+			}
+			return;
+		}
+
+		while (c != -1 && c != '>')
+			c = mReader.read();
+	}
+
+	/**
+	 * Skips over the contents of an element whose contents aren't html, such
+	 * as a script
+	 */
+	private void skipUntilEndTag(String name) throws IOException {
+		String end = "</" + name;
+		int matched = 0;
+		int c;
+
+		while ((c = mReader.read()) != -1) {
+			if (Character.toLowerCase(c) == end.charAt(matched)) {
+				if (++matched == end.length())
+					break;
+			} else
+				matched = c == '<' ? 1 : 0;
+		}
+
+		while (c != -1 && c != '>')
+			c = mReader.read();
+	}
+
+	/**
+	 * @return lower case name of the tag currently held in {@link #mTag}
+	 */
+	private String getTagName(int start) {
+		int end = start;
+		while (end < mTag.length() && Character.isLetterOrDigit(mTag.charAt(end)))
+			end++;
+
+		return mTag.substring(start, end).toLowerCase(Locale.UK);
+	}
+
+	/**
+	 * Finds the value of an attribute of the tag currently held in
+	 * {@link #mTag}
+	 *
+	 * @param name
+	 *            lower case name of the attribute
+	 * @return value of the attribute or null if the tag doesn't have it
+	 */
+	private String getAttribute(String name) {
+		int length = mTag.length();
+
+		// Skip the tag name
+		int i = 0;
+		while (i < length && !Character.isWhitespace(mTag.charAt(i)))
+			i++;
+
+		while (i < length) {
+			while (i < length
+					&& (Character.isWhitespace(mTag.charAt(i)) || mTag
+							.charAt(i) == '/'))
+				i++;
+
+			int nameStart = i;
+			while (i < length && mTag.charAt(i) != '='
+					&& !Character.isWhitespace(mTag.charAt(i)))
+				i++;
+			String attribute = mTag.substring(nameStart, i);
+
+			while (i < length && Character.isWhitespace(mTag.charAt(i)))
+				i++;
+
+			String value = "";
+			if (i < length && mTag.charAt(i) == '=') {
+				i++;
+				while (i < length && Character.isWhitespace(mTag.charAt(i)))
+					i++;
+
+				if (i < length
+						&& (mTag.charAt(i) == '"' || mTag.charAt(i) == '\'')) {
+					char quote = mTag.charAt(i++);
+					int valueStart = i;
+					while (i < length && mTag.charAt(i) != quote)
+						i++;
+					value = mTag.substring(valueStart, i);
+					i++;
+				} else {
+					int valueStart = i;
+					while (i < length && !Character.isWhitespace(mTag.charAt(i)))
+						i++;
+					value = mTag.substring(valueStart, i);
+				}
+			}
+
+			if (attribute.equalsIgnoreCase(name))
+				return value.trim();
+
+			if (nameStart == i)
+				i++;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return value of a numeric attribute of the current tag, or 1 if it
+	 *         doesn't have it or it isn't a number
+	 */
+	private int getIntAttribute(String name) {
+		String value = getAttribute(name);
+
+		if (value == null || value.length() == 0)
+			return 1;
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			// A malformed span, such as colspan=2; shouldn't stop the sync
+			return 1;
+		}
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+/**
+ * Compares the classes parsed from a semester's timetable with the classes
+ * previously added by the sync adapter for that semester and produces the
+ * minimal set of inserts, updates and deletes needed to bring the database in
+ * line with the timetable. The provider keeps the events of each class in line
+ * with it, so a class which moved or changed is a single operation however
+ * many weeks it takes place on.
+ * <p>
+ * All existing classes for the semester are loaded with a single query and
+ * kept in memory keyed by start and weeks, so no further queries are made
+ * while comparing. Events the sync adapter created before classes were held
+ * on their own are loaded too and removed once the classes replace them.
+ */
+class TimetableDiff {
+
+	private static final String[] PROJECTION = { Timetable.Classes._ID,
+			Timetable.Classes.COLUMN_NAME_START,
+			Timetable.Classes.COLUMN_NAME_WEEKS,
+			Timetable.Classes.COLUMN_NAME_SYNC_HASH };
+	private static final int ID_INDEX = 0;
+	private static final int START_INDEX = 1;
+	private static final int WEEKS_INDEX = 2;
+	private static final int SYNC_HASH_INDEX = 3;
+
+	private static final String SELECTION = Timetable.Classes.COLUMN_NAME_SEMESTER
+			+ " = ?";
+
+	private static final String[] ORPHAN_PROJECTION = { Timetable.Events._ID };
+
+	/**
+	 * Selects the events created by the sync adapter which don't belong to a
+	 * class
+	 */
+	private static final String ORPHAN_SELECTION = "("
+			+ Timetable.Events.COLUMN_NAME_SEMESTER + " = ?) AND ("
+			+ Timetable.Events.COLUMN_NAME_USER_CREATED + " = '0') AND ("
+			+ Timetable.Events.COLUMN_NAME_CLASS_ID + " IS NULL)";
+
+	/**
+	 * Classes added by the sync adapter which haven't been matched to a
+	 * parsed class yet
+	 */
+	private final HashMap<String, SyncedClass> mExisting = new HashMap<String, SyncedClass>();
+
+	/**
+	 * Ids of events created by the sync adapter which don't belong to a class
+	 */
+	private final List<Long> mOrphans = new ArrayList<Long>();
+
+	/**
+	 * Number of events the sync adapter had created for this semester
+	 */
+	private int mExistingCount;
+
+	/**
+	 * Number of events of the parsed classes matched to an existing class
+	 */
+	private int mMatchedCount;
+
+	/**
+	 * Number of events of the parsed classes which are inserted
+	 */
+	private int mInsertedCount;
+
+	/**
+	 * Number of inserts, updates and deletes produced
+	 */
+	private final int[] mChanges = new int[3];
+
+	/**
+	 * Class already in the database
+	 */
+	private static class SyncedClass {
+		private final long id;
+
+		/**
+		 * Number of weeks the class takes place on
+		 */
+		private final int events;
+
+		/**
+		 * Sync hash of the class or null if it doesn't have one
+		 */
+		private final Long hash;
+
+		private SyncedClass(long id, int events, Long hash) {
+			this.id = id;
+			this.events = events;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Creates a diff against an empty semester, every class added will be
+	 * inserted
+	 */
+	TimetableDiff() {
+	}
+
+	/**
+	 * Creates a diff against all classes and events created by the sync
+	 * adapter for the semester
+	 *
+	 * @param semester
+	 *            semester to load classes for
+	 * @throws RemoteException
+	 *             if the classes couldn't be loaded
+	 */
+	static TimetableDiff load(ContentProviderClient provider, int semester)
+			throws RemoteException {
+		TimetableDiff diff = new TimetableDiff();
+		String[] selectionArgs = new String[] { "" + semester };
+
+		Cursor cur = provider.query(Timetable.Classes.CONTENT_URI, PROJECTION,
+				SELECTION, selectionArgs, null);
+
+		if (cur != null) {
+			try {
+				while (cur.moveToNext()) {
+					long weeks = cur.getLong(WEEKS_INDEX);
+					String key = getKey(cur.getLong(START_INDEX), weeks);
+
+					Long hash = cur.isNull(SYNC_HASH_INDEX) ? null : cur
+							.getLong(SYNC_HASH_INDEX);
+
+					// Keys are unique so there are no duplicates
+					int events = Long.bitCount(weeks);
+					diff.mExisting.put(key, new SyncedClass(
+							cur.getLong(ID_INDEX), events, hash));
+					diff.mExistingCount += events;
+				}
+			} finally {
+				cur.close();
+			}
+		}
+
+		cur = provider.query(Timetable.Events.CONTENT_URI, ORPHAN_PROJECTION,
+				ORPHAN_SELECTION, selectionArgs, null);
+
+		if (cur != null) {
+			try {
+				while (cur.moveToNext())
+					diff.mOrphans.add(cur.getLong(0));
+
+				diff.mExistingCount += diff.mOrphans.size();
+			} finally {
+				cur.close();
+			}
+		}
+
+		return diff;
+	}
+
+	/**
+	 * Compares a parsed class with the existing classes and adds an insert or
+	 * update operation if needed
+	 *
+	 * @param values
+	 *            values for the parsed class, including its start, weeks and
+	 *            sync hash
+	 * @param operations
+	 *            list to add the operation to
+	 */
+	void add(ContentValues values, List<ContentProviderOperation> operations) {
+		long start = values.getAsLong(Timetable.Classes.COLUMN_NAME_START);
+		long weeks = values.getAsLong(Timetable.Classes.COLUMN_NAME_WEEKS);
+		long hash = values.getAsLong(Timetable.Classes.COLUMN_NAME_SYNC_HASH);
+
+		SyncedClass existing = mExisting.remove(getKey(start, weeks));
+
+		if (existing == null) {
+			// No class at this time on these weeks insert class
+			operations.add(ContentProviderOperation
+					.newInsert(Timetable.Classes.CONTENT_URI)
+					.withValues(values).build());
+			mInsertedCount += Long.bitCount(weeks);
+			mChanges[0]++;
+			return;
+		}
+
+		mMatchedCount += existing.events;
+
+		// No need to update if data is the same
+		if (existing.hash == null || existing.hash.longValue() != hash) {
+			operations.add(ContentProviderOperation
+					.newUpdate(
+							ContentUris.withAppendedId(
+									Timetable.Classes.CONTENT_ID_URI_BASE,
+									existing.id)).withValues(values).build());
+			mChanges[1]++;
+		}
+	}
+
+	/**
+	 * Adds delete operations for the existing classes which weren't matched to
+	 * a parsed class and for the events which don't belong to a class
+	 *
+	 * @param operations
+	 *            list to add the operations to
+	 * @return number of inserts, updates and deletes
+	 */
+	int[] finish(List<ContentProviderOperation> operations) {
+		// To account for times when timetable website is down only delete
+		// events if number of inserted/updated events is greater than or equal
+		// to a quarter of all events for this semester
+		if ((mMatchedCount + mInsertedCount) * 4 >= mExistingCount
+				+ mInsertedCount) {
+			for (long id : mOrphans)
+				operations.add(buildDeleteOperation(id));
+
+			for (SyncedClass c : mExisting.values())
+				operations.add(ContentProviderOperation.newDelete(
+						ContentUris.withAppendedId(
+								Timetable.Classes.CONTENT_ID_URI_BASE, c.id))
+						.build());
+
+			mChanges[2] += mOrphans.size() + mExisting.size();
+		}
+
+		mOrphans.clear();
+		mExisting.clear();
+
+		return mChanges;
+	}
+
+	/**
+	 * Builds an operation to permanently delete an event created by the sync
+	 * adapter only
+	 *
+	 * @param id
+	 *            id of event to delete
+	 * @return the delete operation
+	 */
+	private static ContentProviderOperation buildDeleteOperation(long id) {
+		Uri uri = ContentUris.withAppendedId(Timetable.Events.CONTENT_URI, id);
+
+		String selection = "(" + Timetable.Events.COLUMN_NAME_USER_CREATED
+				+ " = 0)"; /* Only sync adapter created events can be deleted */
+
+		return ContentProviderOperation.newDelete(uri)
+				.withSelection(selection, null).build();
+	}
+
+	/**
+	 * Builds the key identifying a sync adapter added class within a semester.
+	 * The start includes the day and time of the class.
+	 */
+	private static String getKey(long start, long weeks) {
+		// Divide by 1000 to remove millisecond error
+		return (start / 1000) + "|" + weeks;
+	}
+
+}
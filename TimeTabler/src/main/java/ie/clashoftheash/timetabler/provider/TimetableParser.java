@@ -17,38 +17,58 @@
 package ie.clashoftheash.timetabler.provider;
 
 import ie.clashoftheash.timetabler.authenticator.AccountUtils;
+import ie.clashoftheash.timetabler.sync.SyncMetrics;
 import ie.clashoftheash.timetabler.utils.NetworkUtils;
+import ie.clashoftheash.timetabler.utils.PageCache;
 import ie.clashoftheash.timetabler.utils.Utils;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.acra.ACRA;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
+import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.text.TextUtils;
-import android.text.format.Time;
 import android.util.Log;
 
 public class TimetableParser {
 	private static final String TAG = "TimetableParser";
 
+	/**
+	 * Number of semesters, each has its own timetable
+	 */
+	private static final int SEMESTERS = 2;
+
+	private static final long MILLIS_IN_MINUTE = 60 * 1000;
+
+	private static final Pattern MODULE_CODE_PATTERN = Pattern
+			.compile("[A-z]{2}[0-9]{3}");
+
 	private final Context mContext;
 	private final NetworkUtils network;
 
@@ -57,253 +77,391 @@ public class TimetableParser {
 		network = new NetworkUtils(context);
 	}
 
-	public int[] beginParsing(ContentProviderClient provider)
-			throws IOException {
+	/**
+	 * Downloads the timetable for both semesters and brings the database in
+	 * line with it
+	 * 
+	 * @param metrics
+	 *            records the time spent in each stage of the sync
+	 * @return number of inserts, updates and deletes
+	 * @throws IOException
+	 *             if a timetable can't be downloaded
+	 */
+	public int[] beginParsing(ContentProviderClient provider,
+			SyncMetrics metrics) throws IOException {
 		if (!network.connectionAvailable())
 			return new int[3];
 
 		String programmeCode = AccountUtils.getProgrammeCode(mContext);
 		String year = AccountUtils.getYear(mContext);
 
-		Element[] timetables = getTimetableHtml(programmeCode, year);
-
 		boolean update = !(TimetableUtils.isDatabaseEmpty(mContext));
 
-		int[] changes1 = parseTimetableBody(provider, timetables[0], 1, update);
-		int[] changes2 = parseTimetableBody(provider, timetables[1], 2, update);
+		PageCache cache = new PageCache(mContext);
 
-		return Utils.addArrays(changes1, changes2);
-	}
+		// Each semester is downloaded and parsed on its own thread so the
+		// time spent waiting on the network overlaps
+		ExecutorService executor = Executors.newFixedThreadPool(SEMESTERS);
 
-	private int[] parseTimetableBody(ContentProviderClient provider,
-			Element body, int semester, boolean update) {
-		// 9 am on first monday
-		Calendar startTime = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
-		startTime.setTimeInMillis(TimetableUtils.getFirstMonday());
+		try {
+			List<ParseSemester> tasks = new ArrayList<ParseSemester>(
+					SEMESTERS);
+			List<Future<int[]>> results = new ArrayList<Future<int[]>>(
+					SEMESTERS);
+
+			for (int semester = 1; semester <= SEMESTERS; semester++) {
+				ParseSemester task = new ParseSemester(provider, cache,
+						metrics, programmeCode, year, semester, update);
+				tasks.add(task);
+				results.add(executor.submit(task));
+			}
 
-		startTime.setLenient(true);
-		startTime.set(Calendar.HOUR_OF_DAY, 9);
+			// Changes for both semesters are collected and written in a
+			// single transaction
+			ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
 
-		Elements tableRows = body.getElementsByAttributeValue("border", "1")
-				.first().children().first().children(); // Rows within table for
-														// timetable
+			int[] changes = new int[3];
+			for (int i = 0; i < SEMESTERS; i++) {
+				changes = Utils.addArrays(changes, waitFor(results.get(i)));
+				operations.addAll(tasks.get(i).operations);
+			}
 
-		int[] changes = new int[3];
-		HashSet<Long> eventIds = new HashSet<Long>();
+			long start = System.nanoTime();
+			boolean applied = applyOperations(provider, operations);
+			metrics.addTime(SyncMetrics.STAGE_WRITE, System.nanoTime() - start);
 
-		// Needs to be declared out here for when there are multiple rows per
-		// day
-		String day = null;
-
-		for (Element row : tableRows) { // Loop through each row in table
-			Elements cells = row.children(); // Cells per row
+			if (!applied)
+				return new int[3];
 
-			// Time the class will take place at
-			Calendar classTime = Calendar
-					.getInstance(TimetableUtils.TIMEZONE_UTC);
-			classTime.setTimeInMillis(startTime.getTimeInMillis());
+			// Pages are only remembered once their changes have been saved
+			for (ParseSemester task : tasks)
+				task.savePage();
 
-			classTime.setLenient(true);
+			return changes;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-			// First row in table is times denoted by first cell being empty
-			if (TextUtils.isEmpty(cells.first().html()))
-				continue;
+	/**
+	 * Downloads and parses the timetable for a single semester, collecting
+	 * the operations needed to bring the database in line with it. Nothing is
+	 * done if the page hasn't changed since it was last processed.
+	 */
+	private class ParseSemester implements Callable<int[]> {
+		private final ContentProviderClient provider;
+		private final PageCache cache;
+		private final SyncMetrics metrics;
+		private final String key;
+		private final String programmeCode;
+		private final String year;
+		private final int semester;
+		private final boolean update;
+
+		private final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+
+		/**
+		 * Details of the page processed, only set if it has changed
+		 */
+		private boolean changed;
+		private String etag;
+		private String lastModified;
+		private String hash;
+
+		private ParseSemester(ContentProviderClient provider,
+				PageCache cache, SyncMetrics metrics, String programmeCode,
+				String year, int semester, boolean update) {
+			this.provider = provider;
+			this.cache = cache;
+			this.metrics = metrics;
+			this.key = PageCache.getKey(programmeCode, year, semester);
+			this.programmeCode = programmeCode;
+			this.year = year;
+			this.semester = semester;
+			this.update = update;
+		}
 
-			// We now have rows for each day left only
-			int repeatDay = 1;
+		@Override
+		public int[] call() throws IOException {
+			URL url = network.buildTimetableUrl(programmeCode, year, semester);
 
-			for (Element cell : cells) {
-				// First cell contains 3 letter day code, day can span multiple
-				// rows
-				if (cell.html().length() == 3) {
-					day = cell.html();
+			long start = System.nanoTime();
 
-					repeatDay = Integer.valueOf(cell.attr("rowspan"));
-					// Processing of this cell is finished continue on to next
-					continue;
-				}
+			// The page is only known to be unchanged if the events from it are
+			// still in the database
+			HttpURLConnection conn;
+			if (update)
+				conn = network.openConnection(url, cache.getETag(key),
+						cache.getLastModified(key));
+			else
+				conn = network.openConnection(url);
 
-				// Empty cells account for a 30min time span and their content
-				// is &nbsp
-				if (cell.html().equals("&nbsp;")) {
-					classTime.add(Calendar.MINUTE, 30);
-					continue;
-				}
+			metrics.addTime(SyncMetrics.STAGE_CONNECT, System.nanoTime()
+					- start);
 
-				String weeksData = getEventWeeksFromCell(cell); // Weeks in
-																// calendar
-																// event is on
+			if (network.connectionRedirected(url, conn)) {
+				conn.disconnect();
+				throw new IOException("Redirected from " + url);
+			}
 
-				HashSet<Integer> weeks = new HashSet<Integer>();
-				parseWeeks(weeksData, weeks);
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				conn.disconnect();
+				metrics.addSkippedPage();
+				return new int[3];
+			}
 
-				Set<Long> times = computeEventTimes(weeks,
-						classTime.getTimeInMillis());
+			List<ContentValues> classes;
+			SyncMetrics.MeteredInputStream stream = metrics.meter(conn
+					.getInputStream());
+			TimetableCellReader reader = new TimetableCellReader(
+					network.openReader(conn, stream));
+
+			start = System.nanoTime();
+			try {
+				classes = parseTimetable(reader, semester);
+			} finally {
+				reader.close();
+			}
 
-				String eventType = getEventTypeFromCell(cell);
-				String location = getEventRoomFromCell(cell);
-				String lecturer = getEventLecturerFromCell(cell);
-				String module = getEventModuleFromCell(cell);
+			// Time spent waiting on the network is recorded as transfer time
+			metrics.addTime(SyncMetrics.STAGE_PARSE, System.nanoTime() - start
+					- stream.getNanos());
+			metrics.addEvents(countEvents(classes));
 
-				String time = TimetableUtils.getDBTimeFormat(classTime
-						.getTimeInMillis());
+			String newHash = getHash(classes);
+			if (update && newHash != null
+					&& newHash.equals(cache.getHash(key))) {
+				metrics.addSkippedPage();
+				return new int[3];
+			}
 
-				int numHalfHours = Integer
-						.parseInt(cell.attr("colspan").trim());
+			start = System.nanoTime();
+
+			TimetableDiff diff;
+			if (update) {
+				try {
+					diff = TimetableDiff.load(provider, semester);
+				} catch (RemoteException e) {
+					Log.e(TAG, "Failed to load classes for semester "
+							+ semester, e);
+					ACRA.getErrorReporter().handleSilentException(e);
+					return new int[3];
+				}
+			} else
+				diff = new TimetableDiff();
 
-				classTime.add(Calendar.MINUTE, 30 * numHalfHours);
+			for (ContentValues values : classes)
+				diff.add(values, operations);
 
-				String data = TimetableUtils.getDBDataFormat(eventType, module,
-						lecturer, location, semester, day, time,
-						(numHalfHours / 2));
+			int[] changes = diff.finish(operations);
+			metrics.addTime(SyncMetrics.STAGE_DIFF, System.nanoTime() - start);
 
-				for (long t : times) {
-					int week = TimetableUtils.getWeekNumber(t);
+			changed = true;
+			etag = conn.getHeaderField("ETag");
+			lastModified = conn.getHeaderField("Last-Modified");
+			hash = newHash;
 
-					Time temp = new Time(Time.TIMEZONE_UTC);
-					temp.set(t);
+			return changes;
+		}
 
-					temp.minute += 30 * numHalfHours - 10;
+		/**
+		 * Remembers the page so it isn't processed again until it changes
+		 */
+		private void savePage() {
+			if (changed)
+				cache.put(key, etag, lastModified, hash);
+		}
+	}
 
-					long end = temp.toMillis(false);
+	/**
+	 * Waits for a semester to be parsed and rethrows anything thrown while
+	 * parsing it
+	 * 
+	 * @return number of inserts, updates and deletes for the semester
+	 * @throws IOException
+	 *             if the semester couldn't be downloaded or we were
+	 *             interrupted while waiting
+	 */
+	private static int[] waitFor(Future<int[]> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while parsing timetable");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+
+			throw new IOException(cause);
+		}
+	}
 
-					ContentValues values = buildContentValues(eventType,
-							module, lecturer, location, t, end, null, semester,
-							week, day, time, data, false, update);
+	/**
+	 * Reads every class from the timetable
+	 * 
+	 * @return values for each class in the timetable
+	 * @throws IOException
+	 *             if the timetable can't be read
+	 */
+	private List<ContentValues> parseTimetable(TimetableCellReader reader,
+			int semester) throws IOException {
+		// 9 am on first monday
+		Calendar startTime = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		startTime.setTimeInMillis(TimetableUtils.getFirstMonday());
 
-					if (update) {
-						// Update event
-						Cursor cur = getEventSyncData(provider, t, day, time,
-								semester);
+		startTime.setLenient(true);
+		startTime.set(Calendar.HOUR_OF_DAY, 9);
 
-						if (cur != null && cur.moveToFirst()) {
-							// Event at this time update event
-							long id = cur.getLong(0);
-							String oldData = cur.getString(1);
-							cur.close();
+		List<ContentValues> classes = new ArrayList<ContentValues>();
 
-							// true because no need to update if data is the
-							// same
-							boolean result = true;
+		// Time the class will take place at
+		Calendar classTime = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
+		classTime.setLenient(true);
 
-							if (!TextUtils.equals(data, oldData)) {
-								// Data doesn't match, update
-								result = updateEvent(provider, values, id);
+		// Needs to be declared out here for when there are multiple rows per
+		// day
+		String day = null;
+		int repeatDay = 1;
+		boolean firstCell = false;
+		boolean skipRow = false;
+
+		int event;
+		while ((event = reader.next()) != TimetableCellReader.END) {
+			switch (event) {
+			case TimetableCellReader.ROW_START:
+				classTime.setTimeInMillis(startTime.getTimeInMillis());
+
+				repeatDay = 1;
+				firstCell = true;
+				skipRow = false;
+				break;
+			case TimetableCellReader.CELL:
+				String html = reader.getHtml();
 
-								if (result)
-									changes[1]++;
-							}
+				// First row in table is times denoted by first cell being empty
+				if (firstCell) {
+					firstCell = false;
+					skipRow = TextUtils.isEmpty(html);
+				}
 
-							if (result)
-								eventIds.add(id);
-						} else {
-							if (cur != null)
-								cur.close();
-							// No event at this time insert event
-							long id = insertEvent(provider, values);
+				if (skipRow)
+					break;
 
-							if (id != -1) {
-								changes[0]++;
-								eventIds.add(id);
-							}
-						}
-					} else {
-						// Insert event
-						long id = insertEvent(provider, values);
+				// First cell contains 3 letter day code, day can span multiple
+				// rows
+				if (html.length() == 3) {
+					day = html;
+					repeatDay = reader.getRowSpan();
+					break;
+				}
 
-						if (id != -1) {
-							changes[0]++;
-							eventIds.add(id);
-						}
-					}
+				// Empty cells account for a 30min time span and their content
+				// is &nbsp
+				if (html.equals("&nbsp;")) {
+					classTime.add(Calendar.MINUTE, 30);
+					break;
 				}
-			}
 
-			// if next row is not the same day increment time
-			if (--repeatDay <= 0)
-				startTime.add(Calendar.DAY_OF_YEAR, 1);
+				if (!reader.isClass())
+					throw new IOException("Unrecognised timetable cell: "
+							+ html);
+
+				classes.add(parseClass(reader, classTime, semester, day));
+				break;
+			case TimetableCellReader.ROW_END:
+				// if next row is not the same day increment time
+				if (!firstCell && !skipRow && --repeatDay <= 0)
+					startTime.add(Calendar.DAY_OF_YEAR, 1);
+				break;
+			}
 		}
 
-		if (update) {
-			Set<Long> ids = getAllSyncCreatedEventIds(provider, semester);
+		return classes;
+	}
+
+	/**
+	 * Reads the class in the current cell and moves the class time on by the
+	 * length of the class
+	 * 
+	 * @return values for the class, the provider creates an event for each
+	 *         week it takes place on
+	 */
+	private ContentValues parseClass(TimetableCellReader cell,
+			Calendar classTime, int semester, String day) {
+		String weeksData = cell.getWeeks(); // Weeks in calendar event is on
 
-			// To account for times when timetable website is down only
-			// delete events if number of inserted/updated events is greater
-			// than or equal to a quarter of all events for this semester
-			if (eventIds.size() * 4 >= ids.size()) {
+		HashSet<Integer> weeks = new HashSet<Integer>();
+		parseWeeks(weeksData, weeks);
 
-				for (long id : eventIds)
-					ids.remove(id);
+		long start = classTime.getTimeInMillis();
 
-				for (long id : ids) {
-					if (!deleteEventSync(provider, id)) {
-						// TODO: add error processing on failure
-                        ;
-					}
-					changes[2]++;
-				}
-			}
-		}
+		String eventType = getEventTypeFromCell(cell);
+		String location = getEventRoomFromCell(cell);
+		String lecturer = getEventLecturerFromCell(cell);
+		String module = getEventModuleFromCell(cell);
 
-		return changes;
-	}
+		String time = TimetableUtils.getDBTimeFormat(start);
 
-	Element[] getTimetableHtml(String programmeCode, String year)
-			throws IOException {
-		String[] html = new String[2];
-		Element[] body = new Element[2];
+		int numHalfHours = cell.getColSpan();
 
-		for (int i = 0; i < 2; i++) {
-			URL url = network.buildTimetableUrl(programmeCode, year, i + 1);
-			HttpURLConnection conn = network.openConnection(url);
+		classTime.add(Calendar.MINUTE, 30 * numHalfHours);
 
-			if (network.connectionRedirected(url, conn))
-				return null;
+		// Classes end 10 minutes before the last half hour they span
+		long end = start + (30 * numHalfHours - 10) * MILLIS_IN_MINUTE;
 
-			html[i] = network.downloadURL(conn);
+		long hash = TimetableUtils.getSyncHash(eventType, module, lecturer,
+				location, semester, day, time, (numHalfHours / 2));
 
-			body[i] = Jsoup.parse(html[i]).body();
-		}
+		ContentValues values = new ContentValues();
+		values.put(Timetable.Classes.COLUMN_NAME_EVENT_TYPE,
+				Utils.replaceEncodedChars(eventType));
+		values.put(Timetable.Classes.COLUMN_NAME_MODULE,
+				Utils.replaceEncodedChars(module));
+		values.put(Timetable.Classes.COLUMN_NAME_LECTURER,
+				Utils.replaceEncodedChars(lecturer));
+		values.put(Timetable.Classes.COLUMN_NAME_LOCATION,
+				Utils.replaceEncodedChars(location));
+		values.put(Timetable.Classes.COLUMN_NAME_START, start);
+		values.put(Timetable.Classes.COLUMN_NAME_END, end);
+		values.put(Timetable.Classes.COLUMN_NAME_SEMESTER, semester);
+		values.put(Timetable.Classes.COLUMN_NAME_DAY, day);
+		values.put(Timetable.Classes.COLUMN_NAME_TIME, time);
+		values.put(Timetable.Classes.COLUMN_NAME_WEEKS, getWeeksMask(weeks));
+		values.put(Timetable.Classes.COLUMN_NAME_SYNC_HASH, hash);
 
-		return body;
+		return values;
 	}
 
-	private String getEventTypeFromCell(Element cell) {
-		// Get type by navigating to 3 tables in cell, selecting 1st then
-		// selecting the first row (only 1) and the first cell within it
-		return Utils.capitaliseEachWord(cell.children().get(0)
-				.getElementsByTag("tr").first().children().first().html()
-				.trim());
+	private String getEventTypeFromCell(TimetableCellReader cell) {
+		// Type is the first cell of the 1st table in the cell
+		return Utils.capitaliseEachWord(cell.getEventType());
 	}
 
-	private String getEventRoomFromCell(Element cell) {
-		// Get room by navigating to 3 tables in cell, selecting 1st then
-		// selecting the first row (only 1) and the last cell within it
-		return cell.children().get(0).getElementsByTag("tr").first().children()
-				.last().html().trim().toUpperCase(Locale.UK);
+	private String getEventRoomFromCell(TimetableCellReader cell) {
+		// Room is the last cell of the 1st table in the cell
+		return cell.getRoom().toUpperCase(Locale.UK);
 	}
 
-	private String getEventLecturerFromCell(Element cell) {
-		// Get lecturer by navigating to 3 tables in cell, selecting 2nd then
-		// selecting the first row (only 1) and the first cell within it
-		return Utils.capitaliseEachWord(cell.children().get(1)
-				.getElementsByTag("tr").first().children().first().html()
-				.trim());
+	private String getEventLecturerFromCell(TimetableCellReader cell) {
+		// Lecturer is the first cell of the 2nd table in the cell
+		return Utils.capitaliseEachWord(cell.getLecturer());
 	}
 
-	private String getEventModuleFromCell(Element cell) {
-		// Get moduleName by navigating to 3 tables in cell, selecting 2nd then
-		// selecting the first row (only 1) and the last cell within it
-		String moduleName = Utils.capitaliseEachWord(cell.children().get(1)
-				.getElementsByTag("tr").first().children().last().html().trim()
+	private String getEventModuleFromCell(TimetableCellReader cell) {
+		// Module name is the last cell of the 2nd table in the cell
+		String moduleName = Utils.capitaliseEachWord(cell.getModuleName()
 				.toLowerCase(Locale.UK));
-		// Get weeks by navigating to 3 tables in cell, selecting 3rd then
-		// selecting the first row (only 1) and the first cell within it
-		String moduleCode = cell.children().get(2).getElementsByTag("tr")
-				.first().children().first().html().trim()
-				.toUpperCase(Locale.UK);
+		// Module code is the first cell of the 3rd table in the cell
+		String moduleCode = cell.getModuleCode().toUpperCase(Locale.UK);
 
-		Matcher m = Pattern.compile("[A-z]{2}[0-9]{3}").matcher(moduleCode);
+		Matcher m = MODULE_CODE_PATTERN.matcher(moduleCode);
 
 		if (m.find())
 			moduleCode = m.group();
@@ -311,11 +469,54 @@ public class TimetableParser {
 		return moduleCode + " " + moduleName;
 	}
 
-	private String getEventWeeksFromCell(Element cell) {
-		// Get weeks by navigating to 3 tables in cell, selecting 3rd then
-		// selecting the first row (only 1) and the last cell within it
-		return cell.children().get(2).getElementsByTag("tr").first().children()
-				.last().html().trim();
+	/**
+	 * @return number of events created for the classes
+	 */
+	private static int countEvents(List<ContentValues> classes) {
+		int count = 0;
+		for (ContentValues values : classes)
+			count += Long.bitCount(values
+					.getAsLong(Timetable.Classes.COLUMN_NAME_WEEKS));
+
+		return count;
+	}
+
+	/**
+	 * Computes a hash of the classes in a timetable so a timetable can be
+	 * recognised as unchanged even if the rest of its page has changed
+	 * 
+	 * @return hex string of the hash or null if it can't be computed
+	 */
+	private static String getHash(List<ContentValues> classes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			Log.e(TAG, "Failed to hash timetable", e);
+			return null;
+		}
+
+		byte[] buffer = new byte[8];
+		for (ContentValues values : classes) {
+			update(digest, buffer,
+					values.getAsLong(Timetable.Classes.COLUMN_NAME_SYNC_HASH));
+			update(digest, buffer,
+					values.getAsLong(Timetable.Classes.COLUMN_NAME_START));
+			update(digest, buffer,
+					values.getAsLong(Timetable.Classes.COLUMN_NAME_WEEKS));
+		}
+
+		return new BigInteger(1, digest.digest()).toString(16);
+	}
+
+	/**
+	 * Adds the bytes of a long to a digest
+	 */
+	private static void update(MessageDigest digest, byte[] buffer, long value) {
+		for (int i = 0; i < buffer.length; i++)
+			buffer[i] = (byte) (value >>> (8 * i));
+
+		digest.update(buffer);
 	}
 
 	/**
@@ -326,7 +527,7 @@ public class TimetableParser {
 	 * @param weeks
 	 *            TreeSet to parsed weeks into
 	 */
-	private void parseWeeks(String data, Set<Integer> weeks) {
+	static void parseWeeks(String data, Set<Integer> weeks) {
 		if (data.contains(",")) { // Multiple ranges or values
 			String[] split = data.split(",");
 			for (String s : split)
@@ -345,30 +546,29 @@ public class TimetableParser {
 	}
 
 	/**
-	 * Computes long values denoting time in millis from epoch for each week in
-	 * set
+	 * Computes the bitmask of the weeks a class takes place on, as held in
+	 * {@link Timetable.Classes#COLUMN_NAME_WEEKS}
 	 * 
 	 * @param weeks
-	 *            weeks event takes place on
-	 * @param startTime
-	 *            time of event in first week of semester
-	 * @return array of times event takes place at
+	 *            weeks class takes place on, weeks outside 1 to 52 are
+	 *            ignored
+	 * @return bitmask with bit w - 1 set for each week w
 	 */
-	private Set<Long> computeEventTimes(Set<Integer> weeks, long startTime) {
-		HashSet<Long> times = new HashSet<Long>();
+	static long getWeeksMask(Set<Integer> weeks) {
+		long mask = 0;
 
-		long millisInWeek = 7 * 24 * 3600 * 1000;
-
-		for (int w : weeks)
-			times.add(startTime + (w - 1) * millisInWeek);
+		for (int w : weeks) {
+			if (w > 0 && w <= 52)
+				mask |= 1L << (w - 1);
+		}
 
-		return times;
+		return mask;
 	}
 
 	public static ContentValues buildContentValues(String eventType,
 			String module, String lecturer, String location, long start,
 			long end, String notes, int semester, int week, String day,
-			String time, String data, boolean user, boolean update) {
+			String time, Long syncHash, boolean user, boolean update) {
 		ContentValues values = new ContentValues();
 
 		values.put(Timetable.Events.COLUMN_NAME_EVENT_TYPE,
@@ -390,8 +590,8 @@ public class TimetableParser {
 			values.put(Timetable.Events.COLUMN_NAME_DAY, day);
 		if (time != null)
 			values.put(Timetable.Events.COLUMN_NAME_TIME, time);
-		if (data != null)
-			values.put(Timetable.Events.COLUMN_NAME_SYNC_DATA, data);
+		if (syncHash != null)
+			values.put(Timetable.Events.COLUMN_NAME_SYNC_HASH, syncHash);
 
 		if (user)
 			values.put(Timetable.Events.COLUMN_NAME_USER_CREATED, 1 /* true */);
@@ -433,12 +633,11 @@ public class TimetableParser {
 	 */
 	public static boolean updateEvent(ContentProviderClient provider,
 			ContentValues values, long id) {
-		String selection = Timetable.Events._ID + " = ?";
-		String[] selectionArgs = { "" + id };
+		Uri uri = ContentUris.withAppendedId(
+				Timetable.Events.CONTENT_ID_URI_BASE, id);
 
 		try {
-			return (provider.update(Timetable.Events.CONTENT_URI, values,
-					selection, selectionArgs) == 1);
+			return (provider.update(uri, values, null, null) == 1);
 		} catch (RemoteException e) {
 			Log.e(TAG, "Failed to update event", e);
 			ACRA.getErrorReporter().handleSilentException(e);
@@ -447,23 +646,23 @@ public class TimetableParser {
 	}
 
 	/**
-	 * Permanently deletes an event created by the sync adapter only
-	 *
-	 * @param id
-	 *            id of event to delete
-	 * @return success/fail indicator
+	 * Applies all operations in a single batch. Either every operation is
+	 * applied or none are. The batch is applied even if it's empty, as the
+	 * provider rolls the weeks it holds events for forward with each batch.
+	 * 
+	 * @return true if the batch was applied
 	 */
-	private boolean deleteEventSync(ContentProviderClient provider, long id) {
-		Uri uri = ContentUris.withAppendedId(Timetable.Events.CONTENT_URI, id);
-
-		String selection = "(" + Timetable.Events.COLUMN_NAME_USER_CREATED
-				+ " = 0)"; /* Only sync adapter created events can be deleted */
-
+	private static boolean applyOperations(ContentProviderClient provider,
+			ArrayList<ContentProviderOperation> operations) {
 		try {
-			int rows = provider.delete(uri, selection, null);
-			return rows > 0;
+			provider.applyBatch(operations);
+			return true;
 		} catch (RemoteException e) {
-			Log.e(TAG, "Failed to delete event", e);
+			Log.e(TAG, "Failed to apply sync operations", e);
+			ACRA.getErrorReporter().handleSilentException(e);
+			return false;
+		} catch (OperationApplicationException e) {
+			Log.e(TAG, "Failed to apply sync operations", e);
 			ACRA.getErrorReporter().handleSilentException(e);
 			return false;
 		}
@@ -478,15 +677,14 @@ public class TimetableParser {
 	 */
 	public static boolean deleteEventUser(ContentProviderClient provider,
 			long id) {
-		String selection = Timetable.Events._ID + " = ?";
-		String[] selectionArgs = { "" + id };
+		Uri uri = ContentUris.withAppendedId(
+				Timetable.Events.CONTENT_ID_URI_BASE, id);
 
 		ContentValues values = new ContentValues();
 		values.put(Timetable.Events.COLUMN_NAME_USER_DELETED, 1 /* true */);
 
 		try {
-			return provider.update(Timetable.Events.CONTENT_URI, values,
-					selection, selectionArgs) == 1;
+			return provider.update(uri, values, null, null) == 1;
 		} catch (RemoteException e) {
 			Log.e(TAG, "Failed to delete event", e);
 			ACRA.getErrorReporter().handleSilentException(e);
@@ -494,73 +692,4 @@ public class TimetableParser {
 		}
 	}
 
-	/**
-	 * Gets data for event based on start time of event
-	 * 
-	 * @return Cursor containing event data and id or null if none found
-	 */
-	private static Cursor getEventSyncData(ContentProviderClient provider,
-			long start, String day, String time, int sem) {
-		String[] projection = { Timetable.Events._ID,
-				Timetable.Events.COLUMN_NAME_SYNC_DATA };
-		String selection = "(" + Timetable.Events.COLUMN_NAME_START
-				+ " = ?) AND (" + Timetable.Events.COLUMN_NAME_DAY
-				+ " = ?) AND (" + Timetable.Events.COLUMN_NAME_TIME
-				+ " = ?) AND (" + Timetable.Events.COLUMN_NAME_SEMESTER
-				+ " = ?)";
-		String[] selectionArgs = { String.valueOf(start), day, time,
-				String.valueOf(sem) };
-
-		try {
-			return provider.query(Timetable.Events.CONTENT_URI, projection,
-					selection, selectionArgs, null);
-		} catch (RemoteException e) {
-			Log.e(TAG, "Failed to get event sync data", e);
-			ACRA.getErrorReporter().handleSilentException(e);
-			return null;
-		}
-	}
-
-	/**
-	 * Returns a list of ids for all events created by the sync adapter per
-	 * semester
-	 * 
-	 * @param semester
-	 *            semester to get event ids for
-	 * @return array of event ids
-	 */
-	private Set<Long> getAllSyncCreatedEventIds(ContentProviderClient provider,
-			int semester) {
-		String[] projection = { Timetable.Events._ID };
-		String selection = "(" + Timetable.Events.COLUMN_NAME_SEMESTER
-				+ " = ?) AND (" + Timetable.Events.COLUMN_NAME_USER_CREATED
-				+ " = '0')";
-
-		String[] selectionArgs = { "" + semester };
-
-		Cursor cur;
-		try {
-			cur = provider.query(Timetable.Events.CONTENT_URI, projection,
-					selection, selectionArgs, null);
-		} catch (RemoteException e) {
-			Log.e(TAG, "Failed to get all sync created event ids", e);
-			ACRA.getErrorReporter().handleSilentException(e);
-			return null;
-		}
-		if (cur == null)
-			return null;
-
-		HashSet<Long> ids = new HashSet<Long>();
-		for (int i = 0; i < cur.getCount(); i++) {
-			if (!cur.moveToNext())
-				break;
-
-			ids.add(cur.getLong(0));
-		}
-
-		cur.close();
-
-		return ids;
-	}
-
-}
\ No newline at end of file
+}
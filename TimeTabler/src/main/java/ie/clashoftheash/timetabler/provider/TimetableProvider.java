@@ -16,14 +16,23 @@
 
 package ie.clashoftheash.timetabler.provider;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -64,13 +73,40 @@ public class TimetableProvider extends ContentProvider {
 	/**
 	 * The database version
 	 */
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 8;
 
 	/**
 	 * A projection map used to select columns from the database
 	 */
 	private static final HashMap<String, String> sEventsProjectionMap;
 
+	/**
+	 * A projection map used to select columns from the classes table
+	 */
+	private static final HashMap<String, String> sClassesProjectionMap;
+
+	/**
+	 * A projection map used to select columns from the suggestions table
+	 */
+	private static final HashMap<String, String> sSuggestionsProjectionMap;
+
+	/**
+	 * Most suggestions returned for a query, only the first few are shown
+	 */
+	private static final String SUGGESTIONS_LIMIT = "20";
+
+	/**
+	 * Most events returned for an events after URI without a limit
+	 */
+	private static final String EVENTS_AFTER_LIMIT = "1";
+
+	/**
+	 * Order of the events of an agenda URI, the start index gives the events
+	 * in order of start so only events with the same start are sorted
+	 */
+	private static final String AGENDA_SORT_ORDER = Timetable.Events.COLUMN_NAME_START
+			+ " ASC, " + Timetable.Events._ID + " ASC";
+
 	/*
 	 * Constants used by the Uri matcher to choose an action based on the
 	 * pattern of the incoming URI
@@ -81,6 +117,21 @@ public class TimetableProvider extends ContentProvider {
 	// The incoming URI matches the Event ID URI pattern
 	private static final int EVENT_ID = 2;
 
+	// The incoming URI matches the Suggestions URI pattern
+	private static final int SUGGESTIONS = 3;
+
+	// The incoming URI matches the Classes URI pattern
+	private static final int CLASSES = 4;
+
+	// The incoming URI matches the Class ID URI pattern
+	private static final int CLASS_ID = 5;
+
+	// The incoming URI matches the Events After URI pattern
+	private static final int EVENTS_AFTER = 6;
+
+	// The incoming URI matches the Agenda URI pattern
+	private static final int EVENTS_AGENDA = 7;
+
 	/**
 	 * A UriMatcher instance
 	 */
@@ -89,6 +140,32 @@ public class TimetableProvider extends ContentProvider {
 	// Handle to a new DatabaseHelper.
 	private EventsDatabaseHelper mDBHelper;
 
+	/**
+	 * Set while a batch is being applied on the current thread, so the
+	 * statements writing its rows are compiled once for the batch and
+	 * observers are notified once when the batch completes instead of once
+	 * per row
+	 */
+	private final ThreadLocal<WriteStatements> mBatchStatements = new ThreadLocal<WriteStatements>();
+
+	/**
+	 * Spans of the horizon the events of classes are held for, kept so
+	 * queries within it don't need to read or write it. Null until it's first
+	 * read. It's only replaced after the transaction changing the horizon is
+	 * committed, so queries use the previous horizon while a batch is applied
+	 * rather than waiting for it.
+	 */
+	private volatile long[] mHorizon;
+
+	/**
+	 * Number of the write of the horizon which was cached, 0 if it was read.
+	 * Writes are numbered within their transactions, so in the order they
+	 * are committed, and a later write is never replaced by an earlier one.
+	 */
+	private long mHorizonWrite;
+
+	private final AtomicLong mHorizonWrites = new AtomicLong();
+
 	/**
 	 * A block that instantiates and sets static objects
 	 */
@@ -109,6 +186,24 @@ public class TimetableProvider extends ContentProvider {
 		// to a event ID operation
 		sUriMatcher.addURI(Timetable.AUTHORITY, "events/#", EVENT_ID);
 
+		// Add a pattern that routes URIs terminated with "suggestions" to a
+		// SUGGESTIONS operation
+		sUriMatcher.addURI(Timetable.AUTHORITY, "suggestions", SUGGESTIONS);
+
+		// Add patterns that route URIs terminated with "classes", optionally
+		// plus an integer, to CLASSES and CLASS_ID operations
+		sUriMatcher.addURI(Timetable.AUTHORITY, "classes", CLASSES);
+		sUriMatcher.addURI(Timetable.AUTHORITY, "classes/#", CLASS_ID);
+
+		// Add a pattern that routes URIs terminated with "events/after" plus
+		// a time to an EVENTS_AFTER operation
+		sUriMatcher.addURI(Timetable.AUTHORITY, "events/after/#", EVENTS_AFTER);
+
+		// Add a pattern that routes URIs terminated with "events/agenda" plus
+		// two times to an EVENTS_AGENDA operation
+		sUriMatcher.addURI(Timetable.AUTHORITY, "events/agenda/#/#",
+				EVENTS_AGENDA);
+
 		/*
 		 * Creates and initializes a projection map that returns all columns
 		 */
@@ -164,9 +259,13 @@ public class TimetableProvider extends ContentProvider {
 		sEventsProjectionMap.put(Timetable.Events.COLUMN_NAME_TIME,
 				Timetable.Events.COLUMN_NAME_TIME);
 
-		// Maps the string "data" to the column name "data"
-		sEventsProjectionMap.put(Timetable.Events.COLUMN_NAME_SYNC_DATA,
-				Timetable.Events.COLUMN_NAME_SYNC_DATA);
+		// Maps the string "sync_hash" to the column name "sync_hash"
+		sEventsProjectionMap.put(Timetable.Events.COLUMN_NAME_SYNC_HASH,
+				Timetable.Events.COLUMN_NAME_SYNC_HASH);
+
+		// Maps the string "class_id" to the column name "class_id"
+		sEventsProjectionMap.put(Timetable.Events.COLUMN_NAME_CLASS_ID,
+				Timetable.Events.COLUMN_NAME_CLASS_ID);
 
 		// Maps the string "created" to the column name "created"
 		sEventsProjectionMap.put(Timetable.Events.COLUMN_NAME_USER_CREATED,
@@ -175,6 +274,28 @@ public class TimetableProvider extends ContentProvider {
 		// Maps the string "deleted" to the column name "deleted"
 		sEventsProjectionMap.put(Timetable.Events.COLUMN_NAME_USER_DELETED,
 				Timetable.Events.COLUMN_NAME_USER_DELETED);
+
+		// The labels of a class are looked up as they're read
+		sClassesProjectionMap = new HashMap<String, String>();
+		sClassesProjectionMap.put(Timetable.Classes._ID,
+				Timetable.Classes._ID);
+		for (String column : EventsDatabaseHelper.LABEL_COLUMNS)
+			sClassesProjectionMap.put(column, "(SELECT "
+					+ EventsDatabaseHelper.LABELS_COLUMN_NAME_VALUE + " FROM "
+					+ EventsDatabaseHelper.LABELS_TABLE_NAME + " WHERE "
+					+ BaseColumns._ID + " = "
+					+ EventsDatabaseHelper.labelIdColumn(column) + ") AS "
+					+ column);
+		for (String column : EventsDatabaseHelper.CLASS_COLUMNS)
+			sClassesProjectionMap.put(column, column);
+
+		sSuggestionsProjectionMap = new HashMap<String, String>();
+		sSuggestionsProjectionMap.put(Timetable.Suggestions._ID,
+				Timetable.Suggestions._ID);
+		sSuggestionsProjectionMap.put(Timetable.Suggestions.COLUMN_NAME_TYPE,
+				Timetable.Suggestions.COLUMN_NAME_TYPE);
+		sSuggestionsProjectionMap.put(Timetable.Suggestions.COLUMN_NAME_VALUE,
+				Timetable.Suggestions.COLUMN_NAME_VALUE);
 	}
 
 	/**
@@ -184,30 +305,381 @@ public class TimetableProvider extends ContentProvider {
 	 */
 	static class EventsDatabaseHelper extends SQLiteOpenHelper {
 
-		private static final String SQL_CREATE_TABLE = "CREATE TABLE "
-				+ Timetable.Events.TABLE_NAME + " (" + Timetable.Events._ID
+		/**
+		 * Table holding the events. The event type, module, lecturer and
+		 * location of each are held once in the labels table and referenced
+		 * by id, clients read the events through a view with them filled back
+		 * in so the contract is unchanged.
+		 */
+		static final String DATA_TABLE_NAME = Timetable.Events.TABLE_NAME
+				+ "_data";
+
+		/**
+		 * Table holding each distinct string used by the events
+		 */
+		static final String LABELS_TABLE_NAME = "labels";
+		static final String LABELS_COLUMN_NAME_VALUE = "value";
+
+		/**
+		 * Columns of the events which are held in the labels table
+		 */
+		static final String[] LABEL_COLUMNS = {
+				Timetable.Events.COLUMN_NAME_EVENT_TYPE,
+				Timetable.Events.COLUMN_NAME_MODULE,
+				Timetable.Events.COLUMN_NAME_LECTURER,
+				Timetable.Events.COLUMN_NAME_LOCATION };
+
+		/**
+		 * Columns of the classes which are held as they are in the classes
+		 * table
+		 */
+		static final String[] CLASS_COLUMNS = {
+				Timetable.Classes.COLUMN_NAME_START,
+				Timetable.Classes.COLUMN_NAME_END,
+				Timetable.Classes.COLUMN_NAME_SEMESTER,
+				Timetable.Classes.COLUMN_NAME_DAY,
+				Timetable.Classes.COLUMN_NAME_TIME,
+				Timetable.Classes.COLUMN_NAME_WEEKS,
+				Timetable.Classes.COLUMN_NAME_SYNC_HASH };
+
+		/**
+		 * Table holding the number of each academic week, joined with the
+		 * classes to create an event for each week a class takes place on
+		 */
+		private static final String WEEKS_TABLE_NAME = "academic_weeks";
+		private static final String WEEKS_COLUMN_NAME_WEEK = "week";
+		private static final int WEEKS = 52;
+
+		private static final long MILLIS_IN_DAY = 24 * 3600 * 1000L;
+		private static final long MILLIS_IN_WEEK = 7 * MILLIS_IN_DAY;
+
+		/**
+		 * Table holding the horizon, the spans of time the events of classes
+		 * are held for. Each span runs from its start up to but not including
+		 * its end, spans don't overlap or touch. Rolling the horizon leaves a
+		 * single span, extending it adds the span asked for.
+		 */
+		private static final String HORIZON_TABLE_NAME = "class_horizon";
+		private static final String HORIZON_COLUMN_NAME_START = "start";
+		private static final String HORIZON_COLUMN_NAME_END = "end";
+
+		/**
+		 * Weeks before and after the day of a sync the horizon is rolled to.
+		 * A day more is held before, as the agenda's times are local and
+		 * may fall before the day in UTC.
+		 */
+		private static final int HORIZON_WEEKS_BEFORE = 2;
+		private static final int HORIZON_WEEKS_AFTER = 4;
+
+		/**
+		 * Columns of the events which are held as they are in the data table
+		 */
+		private static final String[] DATA_COLUMNS = {
+				Timetable.Events.COLUMN_NAME_START,
+				Timetable.Events.COLUMN_NAME_END,
+				Timetable.Events.COLUMN_NAME_NOTES,
+				Timetable.Events.COLUMN_NAME_SEMESTER,
+				Timetable.Events.COLUMN_NAME_WEEK,
+				Timetable.Events.COLUMN_NAME_DAY,
+				Timetable.Events.COLUMN_NAME_TIME,
+				Timetable.Events.COLUMN_NAME_SYNC_HASH,
+				Timetable.Events.COLUMN_NAME_USER_CREATED,
+				Timetable.Events.COLUMN_NAME_USER_DELETED };
+
+		private static final String SQL_CREATE_DATA_TABLE = "CREATE TABLE "
+				+ DATA_TABLE_NAME + " (" + Timetable.Events._ID
 				+ " INTEGER PRIMARY KEY,"
-				+ Timetable.Events.COLUMN_NAME_EVENT_TYPE
-				+ " TEXT DEFAULT NULL," + Timetable.Events.COLUMN_NAME_MODULE
-				+ " TEXT DEFAULT NULL," + Timetable.Events.COLUMN_NAME_LECTURER
-				+ " TEXT DEFAULT NULL," + Timetable.Events.COLUMN_NAME_LOCATION
-				+ " TEXT DEFAULT NULL," + Timetable.Events.COLUMN_NAME_START
+				+ labelIdColumn(Timetable.Events.COLUMN_NAME_EVENT_TYPE)
+				+ " INTEGER DEFAULT NULL,"
+				+ labelIdColumn(Timetable.Events.COLUMN_NAME_MODULE)
+				+ " INTEGER DEFAULT NULL,"
+				+ labelIdColumn(Timetable.Events.COLUMN_NAME_LECTURER)
+				+ " INTEGER DEFAULT NULL,"
+				+ labelIdColumn(Timetable.Events.COLUMN_NAME_LOCATION)
+				+ " INTEGER DEFAULT NULL," + Timetable.Events.COLUMN_NAME_START
 				+ " UNSIGNED INT NOT NULL," + Timetable.Events.COLUMN_NAME_END
 				+ " UNSIGNED INT NOT NULL,"
 				+ Timetable.Events.COLUMN_NAME_NOTES + " TEXT DEFAULT NULL,"
+				+ Timetable.Events.COLUMN_NAME_CLASS_ID
+				+ " INTEGER DEFAULT NULL,"
 				+ Timetable.Events.COLUMN_NAME_SEMESTER
 				+ " TINYINT(1) DEFAULT '0',"
 				+ Timetable.Events.COLUMN_NAME_WEEK
 				+ " TINYINT(2) DEFAULT '0'," + Timetable.Events.COLUMN_NAME_DAY
 				+ " CHAR(3) DEFAULT NULL," + Timetable.Events.COLUMN_NAME_TIME
 				+ " VARCHAR(5) DEFAULT NULL,"
-				+ Timetable.Events.COLUMN_NAME_SYNC_DATA
-				+ " TEXT DEFAULT NULL,"
+				+ Timetable.Events.COLUMN_NAME_SYNC_HASH
+				+ " INTEGER DEFAULT NULL,"
 				+ Timetable.Events.COLUMN_NAME_USER_CREATED
 				+ " TINYINT(1) DEFAULT '0',"
 				+ Timetable.Events.COLUMN_NAME_USER_DELETED
 				+ " TINYINT(1) DEFAULT '0'" + ");";
 
+		/**
+		 * A class is identified by when it first takes place and the weeks it
+		 * takes place on, a class with the same key replaces the existing
+		 * class
+		 */
+		private static final String SQL_CREATE_CLASSES_TABLE = "CREATE TABLE "
+				+ Timetable.Classes.TABLE_NAME + " (" + Timetable.Classes._ID
+				+ " INTEGER PRIMARY KEY,"
+				+ labelIdColumn(Timetable.Classes.COLUMN_NAME_EVENT_TYPE)
+				+ " INTEGER DEFAULT NULL,"
+				+ labelIdColumn(Timetable.Classes.COLUMN_NAME_MODULE)
+				+ " INTEGER DEFAULT NULL,"
+				+ labelIdColumn(Timetable.Classes.COLUMN_NAME_LECTURER)
+				+ " INTEGER DEFAULT NULL,"
+				+ labelIdColumn(Timetable.Classes.COLUMN_NAME_LOCATION)
+				+ " INTEGER DEFAULT NULL,"
+				+ Timetable.Classes.COLUMN_NAME_START
+				+ " UNSIGNED INT NOT NULL," + Timetable.Classes.COLUMN_NAME_END
+				+ " UNSIGNED INT NOT NULL,"
+				+ Timetable.Classes.COLUMN_NAME_SEMESTER
+				+ " TINYINT(1) DEFAULT '0',"
+				+ Timetable.Classes.COLUMN_NAME_DAY + " CHAR(3) DEFAULT NULL,"
+				+ Timetable.Classes.COLUMN_NAME_TIME
+				+ " VARCHAR(5) DEFAULT NULL,"
+				+ Timetable.Classes.COLUMN_NAME_WEEKS
+				+ " INTEGER NOT NULL DEFAULT 0,"
+				+ Timetable.Classes.COLUMN_NAME_SYNC_HASH
+				+ " INTEGER DEFAULT NULL," + "UNIQUE ("
+				+ Timetable.Classes.COLUMN_NAME_SEMESTER + ", "
+				+ Timetable.Classes.COLUMN_NAME_START + ", "
+				+ Timetable.Classes.COLUMN_NAME_WEEKS + "));";
+
+		private static final String SQL_CREATE_WEEKS_TABLE = "CREATE TABLE "
+				+ WEEKS_TABLE_NAME + " (" + WEEKS_COLUMN_NAME_WEEK
+				+ " INTEGER PRIMARY KEY);";
+
+		private static final String SQL_CREATE_HORIZON_TABLE = "CREATE TABLE "
+				+ HORIZON_TABLE_NAME + " (" + HORIZON_COLUMN_NAME_START
+				+ " INTEGER NOT NULL," + HORIZON_COLUMN_NAME_END
+				+ " INTEGER NOT NULL);";
+
+		private static final String SQL_SELECT_HORIZON = "SELECT "
+				+ HORIZON_COLUMN_NAME_START + ", " + HORIZON_COLUMN_NAME_END
+				+ " FROM " + HORIZON_TABLE_NAME + " ORDER BY "
+				+ HORIZON_COLUMN_NAME_START;
+
+		private static final String SQL_CLEAR_HORIZON = "DELETE FROM "
+				+ HORIZON_TABLE_NAME;
+
+		private static final String SQL_ADD_HORIZON = "INSERT INTO "
+				+ HORIZON_TABLE_NAME + " VALUES (?, ?)";
+
+		private static final String SQL_CREATE_LABELS_TABLE = "CREATE TABLE "
+				+ LABELS_TABLE_NAME + " (" + BaseColumns._ID
+				+ " INTEGER PRIMARY KEY," + LABELS_COLUMN_NAME_VALUE
+				+ " TEXT NOT NULL UNIQUE);";
+
+		/**
+		 * Name of the index used by the agenda
+		 */
+		private static final String START_INDEX_NAME = Timetable.Events.TABLE_NAME
+				+ "_start_index";
+
+		/**
+		 * Name of the index used by the sync adapter
+		 */
+		private static final String SYNC_INDEX_NAME = Timetable.Events.TABLE_NAME
+				+ "_sync_index";
+
+		/**
+		 * Name of the index used to find the events of a class
+		 */
+		private static final String CLASS_INDEX_NAME = Timetable.Events.TABLE_NAME
+				+ "_class_index";
+
+		/**
+		 * Index used by the agenda to select events within a window of time.
+		 * Both start and end are held in the index so the window can be
+		 * evaluated without reading the table.
+		 */
+		private static final String SQL_CREATE_START_INDEX = "CREATE INDEX "
+				+ START_INDEX_NAME + " ON " + DATA_TABLE_NAME + " ("
+				+ Timetable.Events.COLUMN_NAME_START + ", "
+				+ Timetable.Events.COLUMN_NAME_END + ");";
+
+		/**
+		 * Index on the key which identifies an event on the timetable. It is
+		 * unique so that duplicate events are rejected when written rather
+		 * than removed every time they're read. Events created by the user
+		 * have no day or time and, as NULLs are distinct, never conflict.
+		 */
+		private static final String SQL_CREATE_SYNC_INDEX = "CREATE UNIQUE INDEX "
+				+ SYNC_INDEX_NAME + " ON " + DATA_TABLE_NAME + " ("
+				+ Timetable.Events.COLUMN_NAME_SEMESTER + ", "
+				+ Timetable.Events.COLUMN_NAME_START + ", "
+				+ Timetable.Events.COLUMN_NAME_DAY + ", "
+				+ Timetable.Events.COLUMN_NAME_TIME + ");";
+
+		private static final String SQL_CREATE_CLASS_INDEX = "CREATE INDEX "
+				+ CLASS_INDEX_NAME + " ON " + DATA_TABLE_NAME + " ("
+				+ Timetable.Events.COLUMN_NAME_CLASS_ID + ");";
+
+		/**
+		 * Each value may only be suggested once for a type. The unique
+		 * constraint's index takes the column's collation so it can be used
+		 * to find values starting with a prefix regardless of case.
+		 */
+		private static final String SQL_CREATE_SUGGESTIONS_TABLE = "CREATE TABLE "
+				+ Timetable.Suggestions.TABLE_NAME + " ("
+				+ Timetable.Suggestions._ID + " INTEGER PRIMARY KEY,"
+				+ Timetable.Suggestions.COLUMN_NAME_TYPE + " TINYINT(1) NOT NULL,"
+				+ Timetable.Suggestions.COLUMN_NAME_VALUE
+				+ " TEXT NOT NULL COLLATE NOCASE," + "UNIQUE ("
+				+ Timetable.Suggestions.COLUMN_NAME_TYPE + ", "
+				+ Timetable.Suggestions.COLUMN_NAME_VALUE + "));";
+
+		/**
+		 * Names of the triggers which add the module and lecturer of events
+		 * as they are written to the suggestions
+		 */
+		private static final String SUGGEST_INSERT_TRIGGER_NAME = Timetable.Events.TABLE_NAME
+				+ "_suggest_insert";
+		private static final String SUGGEST_UPDATE_TRIGGER_NAME = Timetable.Events.TABLE_NAME
+				+ "_suggest_update";
+
+		private static final String SQL_SUGGEST_NEW_EVENT = " BEGIN "
+				+ suggestNew(Timetable.Suggestions.TYPE_MODULE,
+						Timetable.Events.COLUMN_NAME_MODULE)
+				+ suggestNew(Timetable.Suggestions.TYPE_LECTURER,
+						Timetable.Events.COLUMN_NAME_LECTURER) + " END;";
+
+		private static final String SQL_CREATE_SUGGEST_INSERT_TRIGGER = "CREATE TRIGGER "
+				+ SUGGEST_INSERT_TRIGGER_NAME
+				+ " AFTER INSERT ON "
+				+ DATA_TABLE_NAME + SQL_SUGGEST_NEW_EVENT;
+
+		private static final String SQL_CREATE_SUGGEST_UPDATE_TRIGGER = "CREATE TRIGGER "
+				+ SUGGEST_UPDATE_TRIGGER_NAME
+				+ " AFTER UPDATE OF "
+				+ labelIdColumn(Timetable.Events.COLUMN_NAME_MODULE)
+				+ ", "
+				+ labelIdColumn(Timetable.Events.COLUMN_NAME_LECTURER)
+				+ " ON "
+				+ DATA_TABLE_NAME + SQL_SUGGEST_NEW_EVENT;
+
+		/**
+		 * Removes suggestions which no event or class uses any more. Only the
+		 * events within the horizon are held, so the classes are checked for
+		 * the events beyond it. Each subquery is only evaluated once, so this
+		 * is done after a batch of changes rather than for every deleted row.
+		 */
+		private static final String SQL_PRUNE_SUGGESTIONS = "DELETE FROM "
+				+ Timetable.Suggestions.TABLE_NAME + " WHERE ("
+				+ unused(Timetable.Suggestions.TYPE_MODULE,
+						Timetable.Events.COLUMN_NAME_MODULE) + ") OR ("
+				+ unused(Timetable.Suggestions.TYPE_LECTURER,
+						Timetable.Events.COLUMN_NAME_LECTURER) + ")";
+
+		/**
+		 * Removes labels which no event or class uses any more
+		 */
+		private static final String SQL_PRUNE_LABELS = "DELETE FROM "
+				+ LABELS_TABLE_NAME + " WHERE " + BaseColumns._ID
+				+ " NOT IN (" + selectLabelIds() + ")";
+
+		/**
+		 * Removes classes which have no events left though they take place
+		 * within the horizon, such as when their events are deleted, so the
+		 * next sync adds them again
+		 */
+		private static final String SQL_PRUNE_CLASSES = "DELETE FROM "
+				+ Timetable.Classes.TABLE_NAME + " WHERE "
+				+ Timetable.Classes._ID + " NOT IN (SELECT "
+				+ Timetable.Events.COLUMN_NAME_CLASS_ID + " FROM "
+				+ DATA_TABLE_NAME + " WHERE "
+				+ Timetable.Events.COLUMN_NAME_CLASS_ID
+				+ " IS NOT NULL) AND EXISTS (SELECT 1 FROM " + WEEKS_TABLE_NAME
+				+ " w WHERE " + takesPlace(Timetable.Classes.TABLE_NAME)
+				+ " AND " + inHorizon(inWeek(Timetable.Classes.TABLE_NAME,
+						Timetable.Classes.COLUMN_NAME_START)) + ")";
+
+		/**
+		 * Start of the event of the class c in the week w
+		 */
+		private static final String WEEK_START = inWeek("c",
+				Timetable.Classes.COLUMN_NAME_START);
+
+		/**
+		 * Creates an event for each week a new class takes place on within
+		 * the horizon. An event already at the same time is replaced, its
+		 * notes and whether the user deleted it are kept. Those beyond the
+		 * horizon are replaced too so they belong to the new class. Bound to
+		 * the id of the class.
+		 */
+		private static final String SQL_CREATE_CLASS_EVENTS = insertClassEvents(
+				"REPLACE", "c." + Timetable.Classes._ID + " = ?1 AND ("
+						+ inHorizon(WEEK_START) + " OR EXISTS (SELECT 1"
+						+ replacedEvent() + "))");
+
+		/**
+		 * Creates the events a changed class is missing for the weeks it takes
+		 * place on within the horizon. Bound to the id of the class.
+		 */
+		private static final String SQL_ADD_CLASS_EVENTS = insertClassEvents(
+				"IGNORE", "c." + Timetable.Classes._ID + " = ?1 AND "
+						+ inHorizon(WEEK_START));
+
+		/**
+		 * Creates the events of every class starting from ?1 up to but not
+		 * including ?2, as the horizon is extended over them
+		 */
+		private static final String SQL_EXTEND_CLASS_EVENTS = insertClassEvents(
+				"IGNORE", WEEK_START + " >= ?1 AND " + WEEK_START + " < ?2");
+
+		/**
+		 * Removes the events of classes outside of the horizon, unless the
+		 * user has added notes to or deleted them
+		 */
+		private static final String SQL_TRIM_CLASS_EVENTS = "DELETE FROM "
+				+ DATA_TABLE_NAME + " WHERE "
+				+ Timetable.Events.COLUMN_NAME_CLASS_ID + " IS NOT NULL AND "
+				+ Timetable.Events.COLUMN_NAME_USER_CREATED + " = 0 AND "
+				+ Timetable.Events.COLUMN_NAME_USER_DELETED + " = 0 AND "
+				+ Timetable.Events.COLUMN_NAME_NOTES + " IS NULL AND NOT "
+				+ inHorizon(DATA_TABLE_NAME + "."
+						+ Timetable.Events.COLUMN_NAME_START);
+
+		/**
+		 * Selects the first start and the last start of the next ?2 events
+		 * of classes which start after ?1, NULL if there are none
+		 */
+		private static final String SQL_SELECT_NEXT_CLASS_STARTS = "SELECT MIN(s), MAX(s) FROM (SELECT "
+				+ WEEK_START + " AS s FROM " + Timetable.Classes.TABLE_NAME
+				+ " c, " + WEEKS_TABLE_NAME + " w WHERE " + takesPlace("c")
+				+ " AND s > ?1 ORDER BY s LIMIT ?2)";
+
+		/**
+		 * Removes the events of a changed class for the weeks it no longer
+		 * takes place on. Bound to the id of the class.
+		 */
+		private static final String SQL_REMOVE_CLASS_EVENTS = "DELETE FROM "
+				+ DATA_TABLE_NAME + " WHERE " + classEvents() + " AND ((("
+				+ selectClass(Timetable.Classes.COLUMN_NAME_WEEKS) + ") >> ("
+				+ Timetable.Events.COLUMN_NAME_WEEK + " - 1)) & 1) = 0";
+
+		/**
+		 * Copies the details of a changed class to its events. Bound to the id
+		 * of the class.
+		 */
+		private static final String SQL_UPDATE_CLASS_EVENTS = updateClassEvents();
+
+		/**
+		 * Removes the events the sync adapter created for a class. Bound to the
+		 * id of the class.
+		 */
+		private static final String SQL_DELETE_CLASS_EVENTS = "DELETE FROM "
+				+ DATA_TABLE_NAME + " WHERE " + classEvents();
+
+		/**
+		 * Removes a class. Bound to the id of the class.
+		 */
+		private static final String SQL_DELETE_CLASS = "DELETE FROM "
+				+ Timetable.Classes.TABLE_NAME + " WHERE "
+				+ Timetable.Classes._ID + " = ?1";
+
 		EventsDatabaseHelper(Context context) {
 			// calls the super constructor, requesting the default cursor
 			// factory.
@@ -222,104 +694,691 @@ public class TimetableProvider extends ContentProvider {
 		@Override
 		public void onCreate(SQLiteDatabase db) {
 
-			db.execSQL(SQL_CREATE_TABLE);
+			db.execSQL(SQL_CREATE_LABELS_TABLE);
+			db.execSQL(SQL_CREATE_DATA_TABLE);
+			createIndexes(db);
+			db.execSQL(createEventsView());
+
+			db.execSQL(SQL_CREATE_CLASSES_TABLE);
+			db.execSQL(SQL_CREATE_WEEKS_TABLE);
+			for (int week = 1; week <= WEEKS; week++)
+				db.execSQL("INSERT INTO " + WEEKS_TABLE_NAME + " VALUES ("
+						+ week + ")");
+
+			saveHorizon(db, getRolledHorizon(System.currentTimeMillis()));
+
+			db.execSQL(SQL_CREATE_SUGGESTIONS_TABLE);
+			db.execSQL(SQL_CREATE_SUGGEST_INSERT_TRIGGER);
+			db.execSQL(SQL_CREATE_SUGGEST_UPDATE_TRIGGER);
+		}
+
+		/**
+		 * Turns on write-ahead logging so the agenda can read while the sync
+		 * adapter writes. Writes only go through the connection opened here,
+		 * on it the log is only synced to disk at checkpoints. A crash may
+		 * lose the last transactions but leaves the database intact.
+		 */
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			super.onOpen(db);
+
+			if (!db.isReadOnly()) {
+				db.enableWriteAheadLogging();
+				db.execSQL("PRAGMA synchronous = NORMAL");
+			}
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
-			// Logs that the database is being upgraded
-			Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-					+ newVersion + ", which may destroy all old data");
+			// Logs that the database is being upgraded
+			Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+					+ newVersion + ", which may destroy all old data");
+
+			String tempTable = Timetable.Events.TABLE_NAME + "_temp";
+
+			// Opening db transaction
+			db.beginTransactionNonExclusive();
+
+			try {
+				// Keep the events with their strings in a temporary table
+				// until the tables are rebuilt. Before version 5 they were
+				// already held in a single table which is renamed.
+				if (oldVersion < 5)
+					db.execSQL("ALTER TABLE " + Timetable.Events.TABLE_NAME
+							+ " RENAME TO " + tempTable);
+				else
+					db.execSQL("CREATE TABLE " + tempTable + " AS SELECT * FROM "
+							+ Timetable.Events.TABLE_NAME);
+
+				dropAll(db);
+				onCreate(db);
+
+				// Copy contents across in two statements, first the strings
+				// then the events referencing them. Where events share a key
+				// the most recently added is kept. The triggers fill the
+				// suggestions as the events are copied. Columns which no
+				// longer exist are left behind and new columns take their
+				// defaults. Classes aren't kept, their events no longer
+				// belong to a class and are replaced by the next sync.
+				Set<String> columns = getColumns(db, tempTable);
+				db.execSQL(copyLabels(tempTable, columns));
+				db.execSQL(copyEvents(tempTable, columns));
+
+				db.execSQL("DROP TABLE IF EXISTS " + tempTable);
+
+				db.setTransactionSuccessful();
+			} catch (SQLException e) {
+				Log.e(TAG, "Failed to upgrade database, recreating", e);
+
+				// Drop old tables
+				db.execSQL("DROP TABLE IF EXISTS " + tempTable);
+				dropAll(db);
+
+				// Create new tables
+				onCreate(db);
+
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		/**
+		 * Creates the indexes on the data table
+		 */
+		private static void createIndexes(SQLiteDatabase db) {
+			db.execSQL(SQL_CREATE_START_INDEX);
+			db.execSQL(SQL_CREATE_SYNC_INDEX);
+			db.execSQL(SQL_CREATE_CLASS_INDEX);
+		}
+
+		/**
+		 * Drops every table, view, index and trigger so they can be created
+		 * again. The events may be a table or, since version 5, a view.
+		 */
+		private static void dropAll(SQLiteDatabase db) {
+			boolean eventsIsView = DatabaseUtils.longForQuery(db,
+					"SELECT COUNT(*) FROM sqlite_master WHERE type = 'view'"
+							+ " AND name = ?",
+					new String[] { Timetable.Events.TABLE_NAME }) > 0;
+			db.execSQL((eventsIsView ? "DROP VIEW IF EXISTS "
+					: "DROP TABLE IF EXISTS ") + Timetable.Events.TABLE_NAME);
+
+			// Indexes and triggers are named so may belong to a table which
+			// has been renamed, they are dropped by name to free the names
+			db.execSQL("DROP INDEX IF EXISTS " + START_INDEX_NAME);
+			db.execSQL("DROP INDEX IF EXISTS " + SYNC_INDEX_NAME);
+			db.execSQL("DROP INDEX IF EXISTS " + CLASS_INDEX_NAME);
+			db.execSQL("DROP TRIGGER IF EXISTS " + SUGGEST_INSERT_TRIGGER_NAME);
+			db.execSQL("DROP TRIGGER IF EXISTS " + SUGGEST_UPDATE_TRIGGER_NAME);
+
+			db.execSQL("DROP TABLE IF EXISTS " + DATA_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + Timetable.Classes.TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + WEEKS_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + HORIZON_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + LABELS_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS "
+					+ Timetable.Suggestions.TABLE_NAME);
+		}
+
+		/**
+		 * Removes the classes, labels and suggestions which no event uses any
+		 * more. Each is done in a single statement, so this should be called
+		 * once after a batch of changes rather than for every row.
+		 */
+		static void prune(SQLiteDatabase db) {
+			db.execSQL(SQL_PRUNE_CLASSES);
+			db.execSQL(SQL_PRUNE_SUGGESTIONS);
+			db.execSQL(SQL_PRUNE_LABELS);
+		}
+
+		/**
+		 * Creates the events of a new class
+		 */
+		static void createClassEvents(WriteStatements statements,
+				long classId) {
+			statements.execute(SQL_CREATE_CLASS_EVENTS, classId);
+		}
+
+		/**
+		 * Brings the events of a changed class in line with it. Events the
+		 * user created from one of its events aren't changed.
+		 */
+		static void updateClassEvents(WriteStatements statements,
+				long classId) {
+			statements.execute(SQL_REMOVE_CLASS_EVENTS, classId);
+			statements.execute(SQL_UPDATE_CLASS_EVENTS, classId);
+			statements.execute(SQL_ADD_CLASS_EVENTS, classId);
+		}
+
+		/**
+		 * Deletes a class along with the events the sync adapter created for
+		 * it
+		 * 
+		 * @return number of classes deleted
+		 */
+		static int deleteClass(WriteStatements statements, long classId) {
+			statements.executeUpdateDelete(SQL_DELETE_CLASS_EVENTS, classId);
+			return statements.executeUpdateDelete(SQL_DELETE_CLASS, classId);
+		}
+
+		/**
+		 * @return the spans of the horizon in order, as pairs of start and
+		 *         end
+		 */
+		static long[] getHorizon(SQLiteDatabase db) {
+			Cursor c = db.rawQuery(SQL_SELECT_HORIZON, null);
+			try {
+				long[] horizon = new long[c.getCount() * 2];
+				for (int i = 0; c.moveToNext(); i += 2) {
+					horizon[i] = c.getLong(0);
+					horizon[i + 1] = c.getLong(1);
+				}
+
+				return horizon;
+			} finally {
+				c.close();
+			}
+		}
+
+		/**
+		 * @return whether a span of the horizon covers the times from start
+		 *         up to but not including end
+		 */
+		static boolean covers(long[] horizon, long start, long end) {
+			for (int i = 0; i < horizon.length; i += 2)
+				if (start >= horizon[i] && end <= horizon[i + 1])
+					return true;
+
+			return false;
+		}
+
+		/**
+		 * Moves the horizon to the weeks around the day of a time, creating
+		 * the events of classes it newly covers and removing those it no
+		 * longer covers. Should be called within a transaction.
+		 * 
+		 * @return the spans of the new horizon
+		 */
+		static long[] rollHorizon(SQLiteDatabase db, long time) {
+			long[] horizon = getRolledHorizon(time);
+			fillHorizon(db, getHorizon(db), horizon[0], horizon[1]);
+			saveHorizon(db, horizon);
+			db.execSQL(SQL_TRIM_CLASS_EVENTS);
+
+			return horizon;
+		}
+
+		/**
+		 * Extends the horizon to cover the times from start up to but not
+		 * including end, creating the events of classes within them it
+		 * doesn't already cover. Times between the horizon and them aren't
+		 * covered. Should be called within a transaction.
+		 * 
+		 * @return the spans of the new horizon
+		 */
+		static long[] extendHorizon(SQLiteDatabase db, long start, long end) {
+			long[] horizon = getHorizon(db);
+			if (covers(horizon, start, end))
+				return horizon;
+
+			fillHorizon(db, horizon, start, end);
+			horizon = addSpan(horizon, start, end);
+			saveHorizon(db, horizon);
+
+			return horizon;
+		}
+
+		/**
+		 * @return first start and last start of the next events of classes
+		 *         starting after a time, whether held or not, or null if there
+		 *         are none
+		 */
+		static long[] getNextClassStarts(SQLiteDatabase db, long time,
+				String limit) {
+			Cursor c = db.rawQuery(SQL_SELECT_NEXT_CLASS_STARTS, new String[] {
+					String.valueOf(time), limit });
+			try {
+				if (!c.moveToFirst() || c.isNull(0))
+					return null;
+
+				return new long[] { c.getLong(0), c.getLong(1) };
+			} finally {
+				c.close();
+			}
+		}
+
+		/**
+		 * @return start and end of the horizon rolled to the day of a time
+		 */
+		private static long[] getRolledHorizon(long time) {
+			long day = (time / MILLIS_IN_DAY) * MILLIS_IN_DAY;
+			return new long[] {
+					day - HORIZON_WEEKS_BEFORE * MILLIS_IN_WEEK - MILLIS_IN_DAY,
+					day + HORIZON_WEEKS_AFTER * MILLIS_IN_WEEK };
+		}
+
+		/**
+		 * Creates the events of classes in the times from start up to but not
+		 * including end which the horizon doesn't cover
+		 */
+		private static void fillHorizon(SQLiteDatabase db, long[] horizon,
+				long start, long end) {
+			for (int i = 0; i < horizon.length && start < end; i += 2) {
+				if (horizon[i + 1] <= start)
+					continue;
+				if (horizon[i] >= end)
+					break;
+
+				// The gap before this span
+				if (horizon[i] > start)
+					extendClassEvents(db, start, horizon[i]);
+				start = horizon[i + 1];
+			}
+
+			if (start < end)
+				extendClassEvents(db, start, end);
+		}
+
+		/**
+		 * @return the spans of the horizon with the times from start up to
+		 *         but not including end added, joined with the spans they
+		 *         overlap or touch
+		 */
+		private static long[] addSpan(long[] horizon, long start, long end) {
+			long[] spans = new long[horizon.length + 2];
+			int length = 0;
+			int i = 0;
+
+			// Spans ending before the new span
+			for (; i < horizon.length && horizon[i + 1] < start; i += 2) {
+				spans[length++] = horizon[i];
+				spans[length++] = horizon[i + 1];
+			}
+
+			for (; i < horizon.length && horizon[i] <= end; i += 2) {
+				start = Math.min(start, horizon[i]);
+				end = Math.max(end, horizon[i + 1]);
+			}
+			spans[length++] = start;
+			spans[length++] = end;
+
+			// Spans starting after the new span
+			for (; i < horizon.length; i++)
+				spans[length++] = horizon[i];
+
+			return Arrays.copyOf(spans, length);
+		}
+
+		/**
+		 * Replaces the spans of the horizon
+		 */
+		private static void saveHorizon(SQLiteDatabase db, long[] horizon) {
+			db.execSQL(SQL_CLEAR_HORIZON);
+			for (int i = 0; i < horizon.length; i += 2)
+				db.execSQL(SQL_ADD_HORIZON, new Object[] { horizon[i],
+						horizon[i + 1] });
+		}
+
+		/**
+		 * Creates the events of every class from start up to but not
+		 * including end
+		 */
+		private static void extendClassEvents(SQLiteDatabase db, long start,
+				long end) {
+			db.execSQL(SQL_EXTEND_CLASS_EVENTS, new Object[] { start, end });
+		}
+
+		/**
+		 * @return name of the column in the data table holding the id of the
+		 *         label for an events column
+		 */
+		static String labelIdColumn(String column) {
+			return column + "_id";
+		}
+
+		/**
+		 * @return statement creating the view of the events which fills in
+		 *         the labels of each, its columns are those of the
+		 *         {@link Timetable.Events} contract
+		 */
+		private static String createEventsView() {
+			StringBuilder select = new StringBuilder("d." + Timetable.Events._ID
+					+ " AS " + Timetable.Events._ID);
+			StringBuilder from = new StringBuilder(DATA_TABLE_NAME + " d");
+
+			for (int i = 0; i < LABEL_COLUMNS.length; i++) {
+				String alias = "l" + i;
+				select.append(", ").append(alias).append('.')
+						.append(LABELS_COLUMN_NAME_VALUE).append(" AS ")
+						.append(LABEL_COLUMNS[i]);
+				from.append(" LEFT JOIN ").append(LABELS_TABLE_NAME)
+						.append(' ').append(alias).append(" ON ").append(alias)
+						.append('.').append(BaseColumns._ID).append(" = d.")
+						.append(labelIdColumn(LABEL_COLUMNS[i]));
+			}
+
+			for (String column : DATA_COLUMNS)
+				select.append(", d.").append(column).append(" AS ")
+						.append(column);
+			select.append(", d.")
+					.append(Timetable.Events.COLUMN_NAME_CLASS_ID)
+					.append(" AS ")
+					.append(Timetable.Events.COLUMN_NAME_CLASS_ID);
+
+			return "CREATE VIEW " + Timetable.Events.TABLE_NAME + " AS SELECT "
+					+ select + " FROM " + from;
+		}
+
+		/**
+		 * @return names of the columns of a table
+		 */
+		private static Set<String> getColumns(SQLiteDatabase db, String table) {
+			Cursor c = db.rawQuery("SELECT * FROM " + table + " LIMIT 0", null);
+			try {
+				return new HashSet<String>(Arrays.asList(c.getColumnNames()));
+			} finally {
+				c.close();
+			}
+		}
+
+		/**
+		 * @param columns
+		 *            columns of the {@link Timetable.Events} contract which
+		 *            the table has
+		 * @return statement adding each string used by the events in a table
+		 *         to the labels
+		 */
+		private static String copyLabels(String table, Set<String> columns) {
+			StringBuilder sql = new StringBuilder();
+
+			for (String column : LABEL_COLUMNS) {
+				if (!columns.contains(column))
+					continue;
+
+				if (sql.length() > 0)
+					sql.append(" UNION ");
+				sql.append("SELECT ").append(column).append(" FROM ")
+						.append(table).append(" WHERE ").append(column)
+						.append(" IS NOT NULL");
+			}
+
+			// Nothing to copy, select nothing
+			if (sql.length() == 0)
+				sql.append("SELECT NULL WHERE 0");
+
+			return "INSERT OR IGNORE INTO " + LABELS_TABLE_NAME + " ("
+					+ LABELS_COLUMN_NAME_VALUE + ") " + sql;
+		}
+
+		/**
+		 * @param columns
+		 *            columns of the {@link Timetable.Events} contract which
+		 *            the table has
+		 * @return statement copying the events in a table to the data table,
+		 *         the labels must have been copied first
+		 */
+		private static String copyEvents(String table, Set<String> columns) {
+			StringBuilder names = new StringBuilder(Timetable.Events._ID);
+			StringBuilder values = new StringBuilder("t."
+					+ Timetable.Events._ID);
+
+			for (String column : LABEL_COLUMNS) {
+				if (!columns.contains(column))
+					continue;
+
+				names.append(", ").append(labelIdColumn(column));
+				values.append(", (SELECT ").append(BaseColumns._ID)
+						.append(" FROM ").append(LABELS_TABLE_NAME)
+						.append(" WHERE ").append(LABELS_COLUMN_NAME_VALUE)
+						.append(" = t.").append(column).append(')');
+			}
+
+			boolean canFormatTime = columns
+					.contains(Timetable.Events.COLUMN_NAME_START)
+					&& columns
+							.contains(Timetable.Events.COLUMN_NAME_USER_CREATED);
+
+			for (String column : DATA_COLUMNS) {
+				if (!columns.contains(column))
+					continue;
+
+				names.append(", ").append(column);
+				if (canFormatTime
+						&& column.equals(Timetable.Events.COLUMN_NAME_TIME))
+					values.append(", ").append(copyTime());
+				else
+					values.append(", t.").append(column);
+			}
+
+			return "INSERT OR REPLACE INTO " + DATA_TABLE_NAME + " ("
+					+ names + ") SELECT " + values + " FROM " + table
+					+ " t ORDER BY t." + Timetable.Events._ID + " ASC";
+		}
+
+		/**
+		 * The times of events the sync adapter added used to be formatted in
+		 * the timezone of the device. They are formatted again from their
+		 * start in UTC, as the parser now does, so a class added by the next
+		 * sync finds the event it replaces and keeps its notes.
+		 * 
+		 * @return expression for the time of an event being copied
+		 */
+		private static String copyTime() {
+			String seconds = "t." + Timetable.Events.COLUMN_NAME_START
+					+ " / 1000, 'unixepoch'";
+			String hours = "strftime('%H', " + seconds + ")";
+
+			// Hours run from 1 to 24 so midnight is 24:00
+			return "CASE WHEN t." + Timetable.Events.COLUMN_NAME_USER_CREATED
+					+ " = 0 AND t." + Timetable.Events.COLUMN_NAME_TIME
+					+ " IS NOT NULL THEN (CASE " + hours
+					+ " WHEN '00' THEN '24' ELSE " + hours
+					+ " END) || strftime(':%M', " + seconds + ") ELSE t."
+					+ Timetable.Events.COLUMN_NAME_TIME + " END";
+		}
+
+		/**
+		 * @return query selecting the id of every label used by an event or a
+		 *         class
+		 */
+		private static String selectLabelIds() {
+			StringBuilder sql = new StringBuilder();
+
+			for (String table : new String[] { DATA_TABLE_NAME,
+					Timetable.Classes.TABLE_NAME }) {
+				for (String labelColumn : LABEL_COLUMNS) {
+					String column = labelIdColumn(labelColumn);
+					if (sql.length() > 0)
+						sql.append(" UNION ");
+					sql.append("SELECT ").append(column).append(" FROM ")
+							.append(table).append(" WHERE ").append(column)
+							.append(" IS NOT NULL");
+				}
+			}
+
+			return sql.toString();
+		}
+
+		/**
+		 * @return condition matching the events the sync adapter created for
+		 *         the class bound to ?1
+		 */
+		private static String classEvents() {
+			return Timetable.Events.COLUMN_NAME_CLASS_ID + " = ?1 AND "
+					+ Timetable.Events.COLUMN_NAME_USER_CREATED + " = 0";
+		}
+
+		/**
+		 * @return query selecting an expression of the class bound to ?1
+		 */
+		private static String selectClass(String expression) {
+			return "SELECT " + expression + " FROM "
+					+ Timetable.Classes.TABLE_NAME + " WHERE "
+					+ Timetable.Classes._ID + " = ?1";
+		}
+
+		/**
+		 * @return expression offsetting a time of a class in the first week
+		 *         to the week w
+		 */
+		private static String inWeek(String table, String column) {
+			return table + "." + column + " + (w." + WEEKS_COLUMN_NAME_WEEK
+					+ " - 1) * " + MILLIS_IN_WEEK;
+		}
+
+		/**
+		 * @return condition matching the week w if a class takes place on it
+		 */
+		private static String takesPlace(String table) {
+			return "((" + table + "." + Timetable.Classes.COLUMN_NAME_WEEKS
+					+ " >> (w." + WEEKS_COLUMN_NAME_WEEK + " - 1)) & 1) = 1";
+		}
+
+		/**
+		 * @param time
+		 *            expression for the time, its columns qualified by their
+		 *            table
+		 * @return condition matching a time within a span of the horizon
+		 */
+		private static String inHorizon(String time) {
+			return "EXISTS (SELECT 1 FROM " + HORIZON_TABLE_NAME + " h WHERE h."
+					+ HORIZON_COLUMN_NAME_START + " <= " + time + " AND h."
+					+ HORIZON_COLUMN_NAME_END + " > " + time + ")";
+		}
 
-			// Opening db transaction
-			db.beginTransactionNonExclusive();
+		/**
+		 * @return query clause finding the event e an event of the class c in
+		 *         the week w replaces, through the sync index
+		 */
+		private static String replacedEvent() {
+			return " FROM " + DATA_TABLE_NAME + " e WHERE e."
+					+ Timetable.Events.COLUMN_NAME_SEMESTER + " = c."
+					+ Timetable.Classes.COLUMN_NAME_SEMESTER + " AND e."
+					+ Timetable.Events.COLUMN_NAME_START + " = " + WEEK_START
+					+ " AND e." + Timetable.Events.COLUMN_NAME_DAY + " = c."
+					+ Timetable.Classes.COLUMN_NAME_DAY + " AND e."
+					+ Timetable.Events.COLUMN_NAME_TIME + " = c."
+					+ Timetable.Classes.COLUMN_NAME_TIME;
+		}
 
-			try {
-				// Renaming old table to _temp
-				db.execSQL("ALTER TABLE " + Timetable.Events.TABLE_NAME
-						+ " RENAME TO " + Timetable.Events.TABLE_NAME + "_temp");
+		/**
+		 * @param conflict
+		 *            how to resolve an event already at the same time
+		 * @param where
+		 *            condition on the class c and the week w selecting the
+		 *            events to create
+		 * @return statement creating an event for each week a class takes
+		 *         place on
+		 */
+		private static String insertClassEvents(String conflict, String where) {
+			StringBuilder names = new StringBuilder(
+					Timetable.Events.COLUMN_NAME_CLASS_ID);
+			StringBuilder values = new StringBuilder("c."
+					+ Timetable.Classes._ID);
+
+			for (String column : LABEL_COLUMNS) {
+				names.append(", ").append(labelIdColumn(column));
+				values.append(", c.").append(labelIdColumn(column));
+			}
 
-				// Different action depending on version
-				if (oldVersion == 1 && newVersion == 2) {
-					db.execSQL(SQL_CREATE_TABLE);
-				}
+			names.append(", ").append(Timetable.Events.COLUMN_NAME_START)
+					.append(", ").append(Timetable.Events.COLUMN_NAME_END)
+					.append(", ").append(Timetable.Events.COLUMN_NAME_WEEK);
+			values.append(", ").append(WEEK_START).append(", ")
+					.append(inWeek("c", Timetable.Classes.COLUMN_NAME_END))
+					.append(", w.").append(WEEKS_COLUMN_NAME_WEEK);
+
+			for (String column : new String[] {
+					Timetable.Events.COLUMN_NAME_SEMESTER,
+					Timetable.Events.COLUMN_NAME_DAY,
+					Timetable.Events.COLUMN_NAME_TIME,
+					Timetable.Events.COLUMN_NAME_SYNC_HASH }) {
+				names.append(", ").append(column);
+				values.append(", c.").append(column);
+			}
 
-				// Copy contents across
-				Cursor cur = db.query(Timetable.Events.TABLE_NAME + "_temp",
-						new String[] { Timetable.Events._ID,
-								Timetable.Events.COLUMN_NAME_EVENT_TYPE,
-								Timetable.Events.COLUMN_NAME_MODULE,
-								Timetable.Events.COLUMN_NAME_LECTURER,
-								Timetable.Events.COLUMN_NAME_LOCATION,
-								Timetable.Events.COLUMN_NAME_START,
-								Timetable.Events.COLUMN_NAME_END,
-								Timetable.Events.COLUMN_NAME_NOTES,
-								Timetable.Events.COLUMN_NAME_SEMESTER,
-								Timetable.Events.COLUMN_NAME_WEEK,
-								Timetable.Events.COLUMN_NAME_DAY,
-								Timetable.Events.COLUMN_NAME_TIME,
-								Timetable.Events.COLUMN_NAME_SYNC_DATA,
-								Timetable.Events.COLUMN_NAME_USER_CREATED,
-								Timetable.Events.COLUMN_NAME_USER_DELETED },
-						null, null, null, null, Timetable.Events._ID + " ASC");
-
-				ContentValues values = new ContentValues();
-
-				if (cur.moveToFirst()) {
-					do {
-
-						values.put(Timetable.Events._ID, cur.getLong(0));
-						values.put(Timetable.Events.COLUMN_NAME_EVENT_TYPE,
-								cur.getString(1));
-						values.put(Timetable.Events.COLUMN_NAME_MODULE,
-								cur.getString(2));
-						values.put(Timetable.Events.COLUMN_NAME_LECTURER,
-								cur.getString(3));
-						values.put(Timetable.Events.COLUMN_NAME_LOCATION,
-								cur.getString(4));
-						values.put(Timetable.Events.COLUMN_NAME_START,
-								cur.getLong(5));
-						values.put(Timetable.Events.COLUMN_NAME_END,
-								cur.getLong(6));
-						values.put(Timetable.Events.COLUMN_NAME_NOTES,
-								cur.getString(7));
-						values.put(Timetable.Events.COLUMN_NAME_SEMESTER,
-								cur.getLong(8));
-						values.put(Timetable.Events.COLUMN_NAME_WEEK,
-								cur.getLong(9));
-						values.put(Timetable.Events.COLUMN_NAME_DAY,
-								cur.getString(10));
-						values.put(Timetable.Events.COLUMN_NAME_TIME,
-								cur.getString(11));
-						values.put(Timetable.Events.COLUMN_NAME_SYNC_DATA,
-								cur.getString(12));
-						values.put(Timetable.Events.COLUMN_NAME_USER_CREATED,
-								cur.getLong(13));
-						values.put(Timetable.Events.COLUMN_NAME_USER_DELETED,
-								cur.getLong(14));
-
-					} while (cur.moveToNext());
-				}
+			String replaced = replacedEvent();
+			names.append(", ").append(Timetable.Events.COLUMN_NAME_NOTES)
+					.append(", ")
+					.append(Timetable.Events.COLUMN_NAME_USER_DELETED);
+			values.append(", (SELECT e.")
+					.append(Timetable.Events.COLUMN_NAME_NOTES)
+					.append(replaced).append("), IFNULL((SELECT e.")
+					.append(Timetable.Events.COLUMN_NAME_USER_DELETED)
+					.append(replaced).append("), 0)");
+
+			return "INSERT OR " + conflict + " INTO " + DATA_TABLE_NAME + " ("
+					+ names + ") SELECT " + values + " FROM "
+					+ Timetable.Classes.TABLE_NAME + " c, " + WEEKS_TABLE_NAME
+					+ " w WHERE " + takesPlace("c") + " AND " + where;
+		}
 
-				db.insert(Timetable.Events.TABLE_NAME, null, values);
+		/**
+		 * @return statement copying the class bound to ?1 to its events
+		 */
+		private static String updateClassEvents() {
+			StringBuilder set = new StringBuilder();
 
-				db.execSQL("DROP TABLE IF EXISTS "
-						+ Timetable.Events.TABLE_NAME + "_temp");
+			for (String column : LABEL_COLUMNS) {
+				String idColumn = labelIdColumn(column);
+				set.append(idColumn).append(" = (")
+						.append(selectClass(idColumn)).append("), ");
+			}
 
-				db.setTransactionSuccessful();
-			} catch (Exception e) {
-				// Drop old table
-				db.execSQL("DROP TABLE IF EXISTS "
-						+ Timetable.Events.TABLE_NAME);
+			for (String column : new String[] {
+					Timetable.Events.COLUMN_NAME_START,
+					Timetable.Events.COLUMN_NAME_END })
+				set.append(column).append(" = (").append(selectClass(column))
+						.append(") + (")
+						.append(Timetable.Events.COLUMN_NAME_WEEK)
+						.append(" - 1) * ").append(MILLIS_IN_WEEK).append(", ");
+
+			for (String column : new String[] {
+					Timetable.Events.COLUMN_NAME_SEMESTER,
+					Timetable.Events.COLUMN_NAME_DAY,
+					Timetable.Events.COLUMN_NAME_TIME,
+					Timetable.Events.COLUMN_NAME_SYNC_HASH })
+				set.append(column).append(" = (").append(selectClass(column))
+						.append("), ");
+
+			set.setLength(set.length() - 2);
+
+			return "UPDATE OR REPLACE " + DATA_TABLE_NAME + " SET " + set
+					+ " WHERE " + classEvents();
+		}
 
-				// Create new table
-				db.execSQL(SQL_CREATE_TABLE);
+		/**
+		 * @return statement for a trigger adding the label of a new event
+		 *         referenced by the id column for an events column to the
+		 *         suggestions of a type
+		 */
+		private static String suggestNew(int type, String column) {
+			return "INSERT OR IGNORE INTO " + Timetable.Suggestions.TABLE_NAME
+					+ " (" + Timetable.Suggestions.COLUMN_NAME_TYPE + ", "
+					+ Timetable.Suggestions.COLUMN_NAME_VALUE + ") SELECT "
+					+ type + ", " + LABELS_COLUMN_NAME_VALUE + " FROM "
+					+ LABELS_TABLE_NAME + " WHERE " + BaseColumns._ID
+					+ " = NEW." + labelIdColumn(column) + " AND "
+					+ LABELS_COLUMN_NAME_VALUE + " != '';";
+		}
 
-				db.setTransactionSuccessful();
-			} finally {
-				db.endTransaction();
-			}
+		/**
+		 * @return condition matching suggestions of a type which aren't a
+		 *         value of an events column, for an event or for a class
+		 */
+		private static String unused(int type, String column) {
+			return Timetable.Suggestions.COLUMN_NAME_TYPE + " = " + type
+					+ " AND " + Timetable.Suggestions.COLUMN_NAME_VALUE
+					+ " NOT IN (SELECT " + column + " FROM "
+					+ Timetable.Events.TABLE_NAME + " WHERE " + column
+					+ " IS NOT NULL) AND "
+					+ Timetable.Suggestions.COLUMN_NAME_VALUE
+					+ " NOT IN (SELECT l." + LABELS_COLUMN_NAME_VALUE + " FROM "
+					+ LABELS_TABLE_NAME + " l, " + Timetable.Classes.TABLE_NAME
+					+ " c WHERE l." + BaseColumns._ID + " = c."
+					+ labelIdColumn(column) + ")";
 		}
 	}
 
@@ -355,10 +1414,10 @@ public class TimetableProvider extends ContentProvider {
 	public Cursor query(Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {
 
-		// Constructs a new query builder and sets its table name
+		// Constructs a new query builder
 		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-		qb.setDistinct(true);
-		qb.setTables(Timetable.Events.TABLE_NAME);
+		String defaultOrderBy = Timetable.Events.DEFAULT_SORT_ORDER;
+		String limit = null;
 
 		/**
 		 * Choose the projection and adjust the "where" clause based on URI
@@ -367,6 +1426,7 @@ public class TimetableProvider extends ContentProvider {
 		switch (sUriMatcher.match(uri)) {
 		// If the incoming URI is for events, choose the Events projection
 		case EVENTS:
+			qb.setTables(Timetable.Events.TABLE_NAME);
 			qb.setProjectionMap(sEventsProjectionMap);
 			break;
 
@@ -376,6 +1436,7 @@ public class TimetableProvider extends ContentProvider {
 		 * where clause, so that it selects that single event
 		 */
 		case EVENT_ID:
+			qb.setTables(Timetable.Events.TABLE_NAME);
 			qb.setProjectionMap(sEventsProjectionMap);
 			qb.appendWhere(Timetable.Events._ID + // the name of the ID column
 					"=" +
@@ -384,6 +1445,65 @@ public class TimetableProvider extends ContentProvider {
 							Timetable.Events.EVENT_ID_PATH_POSITION));
 			break;
 
+		// If the incoming URI is for the events after a time, only the first
+		// few are returned
+		case EVENTS_AFTER:
+			long after = getTime(uri,
+					Timetable.Events.EVENTS_AFTER_TIME_PATH_POSITION);
+			limit = getLimit(uri, EVENTS_AFTER_LIMIT);
+			coverNextClasses(after, limit);
+
+			qb.setTables(Timetable.Events.TABLE_NAME);
+			qb.setProjectionMap(sEventsProjectionMap);
+			qb.appendWhere(Timetable.Events.COLUMN_NAME_START + " > " + after);
+			break;
+
+		// If the incoming URI is for a page of the agenda, the page follows
+		// on from the last event of the previous page using the start index
+		case EVENTS_AGENDA:
+			long from = getTime(uri,
+					Timetable.Events.AGENDA_FROM_PATH_POSITION);
+			long to = getTime(uri, Timetable.Events.AGENDA_TO_PATH_POSITION);
+			coverHorizon(from, to + 1);
+
+			qb.setTables(Timetable.Events.TABLE_NAME);
+			qb.setProjectionMap(sEventsProjectionMap);
+			qb.appendWhere(Timetable.Events.COLUMN_NAME_START + " BETWEEN "
+					+ from + " AND " + to + " AND "
+					+ Timetable.Events.COLUMN_NAME_USER_DELETED + " = 0");
+			appendAfter(qb, uri);
+
+			// Pages only follow on from each other in this order
+			sortOrder = AGENDA_SORT_ORDER;
+			limit = getLimit(uri,
+					String.valueOf(Timetable.Events.AGENDA_PAGE_SIZE));
+			break;
+
+		// If the incoming URI is for suggestions, only the first few are
+		// returned
+		case SUGGESTIONS:
+			qb.setTables(Timetable.Suggestions.TABLE_NAME);
+			qb.setProjectionMap(sSuggestionsProjectionMap);
+			defaultOrderBy = Timetable.Suggestions.DEFAULT_SORT_ORDER;
+			limit = SUGGESTIONS_LIMIT;
+			break;
+
+		case CLASSES:
+			qb.setTables(Timetable.Classes.TABLE_NAME);
+			qb.setProjectionMap(sClassesProjectionMap);
+			defaultOrderBy = Timetable.Classes.DEFAULT_SORT_ORDER;
+			break;
+
+		case CLASS_ID:
+			qb.setTables(Timetable.Classes.TABLE_NAME);
+			qb.setProjectionMap(sClassesProjectionMap);
+			defaultOrderBy = Timetable.Classes.DEFAULT_SORT_ORDER;
+			qb.appendWhere(Timetable.Classes._ID
+					+ "="
+					+ uri.getPathSegments().get(
+							Timetable.Classes.CLASS_ID_PATH_POSITION));
+			break;
+
 		default:
 			// If the URI doesn't match any of the known patterns, throw an
 			// exception.
@@ -393,7 +1513,7 @@ public class TimetableProvider extends ContentProvider {
 		String orderBy;
 		// If no sort order is specified, uses the default
 		if (TextUtils.isEmpty(sortOrder))
-			orderBy = Timetable.Events.DEFAULT_SORT_ORDER;
+			orderBy = defaultOrderBy;
 		else
 			// otherwise, uses the incoming sort order
 			orderBy = sortOrder;
@@ -402,36 +1522,6 @@ public class TimetableProvider extends ContentProvider {
 		// done.
 		SQLiteDatabase db = mDBHelper.getReadableDatabase();
 
-		// Create groupBy string from projection
-		// Used to remove duplicates
-		StringBuilder groupBy = new StringBuilder();
-		for (String s : projection)
-			if (!s.equals(BaseColumns._ID))
-				groupBy.append(s).append(", ");
-
-		if (groupBy.length() > 0)
-			groupBy.delete(groupBy.lastIndexOf(", "), groupBy.length());
-
-		// Check for start or end in selection, if present set last 3 digits to
-		// 0 to remove millisecond error
-		if (selection != null
-				&& (selection.contains(Timetable.Events.COLUMN_NAME_START) || selection
-						.contains(Timetable.Events.COLUMN_NAME_END))) {
-			String[] split = selection.split("\\?");
-
-			if (split.length == selectionArgs.length) {
-				int i = 0;
-				for (String s : split) {
-					if (s.contains(Timetable.Events.COLUMN_NAME_START)
-							|| s.contains(Timetable.Events.COLUMN_NAME_END)) {
-						selectionArgs[i] = String.valueOf((Long
-								.valueOf(selectionArgs[i]) / 1000) * 1000);
-					}
-					i++;
-				}
-			}
-		}
-
 		/*
 		 * Performs the query. If no problems occur trying to read the database,
 		 * then a Cursor object is returned; otherwise, the cursor variable
@@ -442,9 +1532,10 @@ public class TimetableProvider extends ContentProvider {
 				projection, // The columns to return from the query
 				selection, // The columns for the where clause
 				selectionArgs, // The values for the where clause
-				groupBy.toString(), // group to remove duplicates
+				null, // don't group the rows, duplicates are rejected on write
 				null, // don't filter by row groups
-				orderBy // The sort order
+				orderBy, // The sort order
+				limit // The most rows to return, null for no limit
 				);
 
 		// Tells the Cursor what URI to watch, so it knows when its source data
@@ -480,6 +1571,24 @@ public class TimetableProvider extends ContentProvider {
 		case EVENT_ID:
 			return Timetable.Events.CONTENT_ITEM_TYPE;
 
+			// If the pattern is for the events after a time or in the agenda,
+			// returns the general content type.
+		case EVENTS_AFTER:
+		case EVENTS_AGENDA:
+			return Timetable.Events.CONTENT_TYPE;
+
+			// If the pattern is for suggestions, returns the suggestions
+			// content type.
+		case SUGGESTIONS:
+			return Timetable.Suggestions.CONTENT_TYPE;
+
+			// If the pattern is for classes or class IDs, returns the classes
+			// content types.
+		case CLASSES:
+			return Timetable.Classes.CONTENT_TYPE;
+		case CLASS_ID:
+			return Timetable.Classes.CONTENT_ITEM_TYPE;
+
 			// If the URI pattern doesn't match any permitted patterns, throws
 			// an exception.
 		default:
@@ -501,49 +1610,40 @@ public class TimetableProvider extends ContentProvider {
 	@Override
 	public Uri insert(Uri uri, ContentValues initialValues) {
 
-		// Validates the incoming URI. Only the full provider URI is allowed for
-		// inserts.
-		if (sUriMatcher.match(uri) != EVENTS)
+		// Validates the incoming URI. Only the full events and classes URIs
+		// are allowed for inserts.
+		int match = sUriMatcher.match(uri);
+		if (match != EVENTS && match != CLASSES)
 			throw new IllegalArgumentException("Unknown URI " + uri);
 
-		// A map to hold the new record's values.
-		ContentValues values;
-
-		// If the incoming values map is not null, uses it for the new values.
-		if (initialValues != null)
-			values = new ContentValues(initialValues);
-		else
-			// Otherwise, create a new value map
-			values = new ContentValues();
-
-		// Check for start or end in content values, if present set last 3
-		// digits to 0 to remove millisecond error
-		if (values.size() > 0) {
-			if (values.containsKey(Timetable.Events.COLUMN_NAME_START)) {
-				long temp = values
-						.getAsLong(Timetable.Events.COLUMN_NAME_START);
-				temp = (temp / 1000) * 1000;
-				values.put(Timetable.Events.COLUMN_NAME_START, temp);
-			}
-			if (values.containsKey(Timetable.Events.COLUMN_NAME_END)) {
-				long temp = values.getAsLong(Timetable.Events.COLUMN_NAME_END);
-				temp = (temp / 1000) * 1000;
-				values.put(Timetable.Events.COLUMN_NAME_END, temp);
-			}
-		}
-
 		// Opens the database object in "write" mode.
 		SQLiteDatabase db = mDBHelper.getWritableDatabase();
-
-		// Performs the insert and returns the ID of the new event.
-		long rowId = db.insert(Timetable.Events.TABLE_NAME, // The table to
-															// insert into.
-				Timetable.Events.COLUMN_NAME_MODULE, // A hack, SQLite sets this
-														// column value to null
-														// if values is empty.
-				values // A map of column names, and the values to insert into
-						// the columns.
-				);
+		WriteStatements statements = getStatements(db);
+		long rowId;
+
+		try {
+			// The incoming values are copied once, as their labels are
+			// replaced by ids
+			ContentValues values = toDataValues(statements,
+					initialValues != null ? initialValues
+							: new ContentValues());
+			truncateTimes(values);
+
+			if (match == CLASSES)
+				return insertClass(db, statements, uri, values);
+
+			// A hack, SQLite sets this column value to null if values is
+			// empty.
+			if (values.size() == 0)
+				values.putNull(Timetable.Events.COLUMN_NAME_NOTES);
+
+			// Performs the insert and returns the ID of the new event. An
+			// event with the same sync key as an existing event replaces it.
+			rowId = statements.insert(EventsDatabaseHelper.DATA_TABLE_NAME,
+					"REPLACE", values);
+		} finally {
+			releaseStatements(statements);
+		}
 
 		// If the insert succeeded, the row ID exists.
 		if (rowId > 0) {
@@ -554,7 +1654,7 @@ public class TimetableProvider extends ContentProvider {
 
 			// Notifies observers registered against this provider that the data
 			// changed.
-			getContext().getContentResolver().notifyChange(eventUri, null);
+			notifyChange(eventUri);
 			return eventUri;
 		}
 
@@ -587,26 +1687,11 @@ public class TimetableProvider extends ContentProvider {
 		SQLiteDatabase db = mDBHelper.getWritableDatabase();
 		String finalWhere;
 
-		// Check for start or end in where, if present set last 3 digits to
-		// 0 to remove millisecond error
-		if (where != null && (where.contains(Timetable.Events.COLUMN_NAME_START)
-				|| where.contains(Timetable.Events.COLUMN_NAME_END))) {
-			String[] split = where.split("\\?");
-
-			if (split.length == whereArgs.length) {
-				int i = 0;
-				for (String s : split) {
-					if (s.contains(Timetable.Events.COLUMN_NAME_START)
-							|| s.contains(Timetable.Events.COLUMN_NAME_END))
-						whereArgs[i] = String.valueOf((Long
-								.valueOf(whereArgs[i]) / 1000) * 1000);
-					i++;
-				}
-			}
-		}
-
 		int count;
 
+		// Changes to classes are seen through their events
+		Uri changedUri = uri;
+
 		// Does the delete based on the incoming URI pattern.
 		switch (sUriMatcher.match(uri)) {
 
@@ -614,11 +1699,20 @@ public class TimetableProvider extends ContentProvider {
 		// a delete
 		// based on the incoming "where" columns and arguments.
 		case EVENTS:
-			count = db.delete(Timetable.Events.TABLE_NAME, // The database table
-															// name
-					where, // The incoming where clause column names
+			count = db.delete(
+					EventsDatabaseHelper.DATA_TABLE_NAME, // The database table
+					toDataWhere(where), // The incoming where clause
 					whereArgs // The incoming where clause values
 					);
+
+			// Every event is deleted, so are the classes so that events
+			// aren't created for them as the horizon is extended
+			if (where == null)
+				db.delete(Timetable.Classes.TABLE_NAME, null, null);
+
+			// Batches prune labels once they complete
+			if (mBatchStatements.get() == null)
+				EventsDatabaseHelper.prune(db);
 			break;
 
 		// If the incoming URI matches a single event ID, does the delete based
@@ -639,16 +1733,35 @@ public class TimetableProvider extends ContentProvider {
 			// final
 			// WHERE clause
 			if (where != null)
-				finalWhere = finalWhere + " AND " + where;
+				finalWhere = toDataWhere(finalWhere + " AND " + where);
 
 			// Performs the delete.
-			count = db.delete(Timetable.Events.TABLE_NAME, // The database table
-															// name.
+			count = db.delete(
+					EventsDatabaseHelper.DATA_TABLE_NAME, // The database table
 					finalWhere, // The final WHERE clause
 					whereArgs // The incoming where clause values.
 					);
 			break;
 
+		case CLASSES:
+			count = deleteClasses(db, where, whereArgs);
+			changedUri = Timetable.Events.CONTENT_URI;
+			break;
+
+		case CLASS_ID:
+			String classId = uri.getPathSegments().get(
+					Timetable.Classes.CLASS_ID_PATH_POSITION);
+
+			// The sync adapter deletes classes by id alone
+			if (where == null)
+				count = deleteClass(db, Long.parseLong(classId));
+			else
+				count = deleteClasses(db, Timetable.Classes._ID + " = "
+						+ classId + " AND " + where, whereArgs);
+
+			changedUri = Timetable.Events.CONTENT_URI;
+			break;
+
 		// If the incoming pattern is invalid, throws an exception.
 		default:
 			throw new IllegalArgumentException("Unknown URI " + uri);
@@ -660,7 +1773,7 @@ public class TimetableProvider extends ContentProvider {
 		 * along to the resolver framework, and observers that have registered
 		 * themselves for the provider are notified.
 		 */
-		getContext().getContentResolver().notifyChange(uri, null);
+		notifyChange(changedUri);
 
 		// Returns the number of rows deleted.
 		return count;
@@ -702,99 +1815,544 @@ public class TimetableProvider extends ContentProvider {
 		int count;
 		String finalWhere;
 
-		// Check for start or end in where, if present set last 3 digits to
-		// 0 to remove millisecond error
-		if (where != null && (where.contains(Timetable.Events.COLUMN_NAME_START)
-				|| where.contains(Timetable.Events.COLUMN_NAME_END))) {
-			String[] split = where.split("\\?");
-
-			if (split.length == whereArgs.length) {
-				int i = 0;
-				for (String s : split) {
-					if (s.contains(Timetable.Events.COLUMN_NAME_START)
-							|| s.contains(Timetable.Events.COLUMN_NAME_END))
-						whereArgs[i] = String.valueOf((Long
-								.valueOf(whereArgs[i]) / 1000) * 1000);
-					i++;
-				}
+		WriteStatements statements = getStatements(db);
+
+		// Changes to classes are seen through their events
+		Uri changedUri = uri;
+
+		try {
+			// Labels are stored by id
+			ContentValues data = toDataValues(statements, values);
+			truncateTimes(data);
+
+			// Does the update based on the incoming URI pattern
+			switch (sUriMatcher.match(uri)) {
+
+			// If the incoming URI matches the general events pattern, does
+			// the update based on the incoming data.
+			case EVENTS:
+
+				// Does the update and returns the number of rows updated.
+				count = db.update(
+						EventsDatabaseHelper.DATA_TABLE_NAME, // The table
+						data, // A map of column names and new values to use.
+						toDataWhere(where), // The where clause column names.
+						whereArgs // The where clause column values.
+						);
+				break;
+
+			// If the incoming URI matches a single event ID, does the update
+			// based on the incoming data, but modifies the where clause to
+			// restrict it to the particular event ID.
+			case EVENT_ID:
+				/*
+				 * Starts creating the final WHERE clause by restricting it to
+				 * the incoming event ID.
+				 */
+				finalWhere = Timetable.Events._ID + // The ID column name
+						" = " + // test for equality
+						uri.getPathSegments(). // the incoming event ID
+								get(Timetable.Events.EVENT_ID_PATH_POSITION);
+
+				// If there were additional selection criteria, append them to
+				// the final WHERE clause
+				if (where != null)
+					finalWhere = toDataWhere(finalWhere + " AND " + where);
+
+				// Does the update and returns the number of rows updated.
+				count = db.update(
+						EventsDatabaseHelper.DATA_TABLE_NAME, // The table
+						data, // A map of column names and new values to use.
+						finalWhere, // The final WHERE clause to use
+									// placeholders for whereArgs
+						whereArgs // The where clause column values to select
+									// on, or null if the values are in the
+									// where argument.
+						);
+				break;
+
+			case CLASSES:
+				count = updateClasses(db, statements, data, where, whereArgs);
+				changedUri = Timetable.Events.CONTENT_URI;
+				break;
+
+			case CLASS_ID:
+				String classId = uri.getPathSegments().get(
+						Timetable.Classes.CLASS_ID_PATH_POSITION);
+
+				// The sync adapter updates classes by id alone
+				if (where == null)
+					count = updateClass(db, statements, data,
+							Long.parseLong(classId));
+				else
+					count = updateClasses(db, statements, data,
+							Timetable.Classes._ID + " = " + classId + " AND "
+									+ where, whereArgs);
+
+				changedUri = Timetable.Events.CONTENT_URI;
+				break;
+			// If the incoming pattern is invalid, throws an exception.
+			default:
+				throw new IllegalArgumentException("Unknown URI " + uri);
 			}
+		} finally {
+			releaseStatements(statements);
 		}
 
-		// Check for start or end in content values, if present set last 3
-		// digits to 0 to remove millisecond error
-		if (values.containsKey(Timetable.Events.COLUMN_NAME_START)) {
-			long temp = values.getAsLong(Timetable.Events.COLUMN_NAME_START);
-			temp = (temp / 1000) * 1000;
-			values.put(Timetable.Events.COLUMN_NAME_START, temp);
+		/*
+		 * Gets a handle to the content resolver object for the current context,
+		 * and notifies it that the incoming URI changed. The object passes this
+		 * along to the resolver framework, and observers that have registered
+		 * themselves for the provider are notified.
+		 */
+		notifyChange(changedUri);
+
+		// Returns the number of rows updated.
+		return count;
+	}
+
+	/**
+	 * Applies all of the operations within a single database transaction. If
+	 * any operation fails the whole batch is rolled back. The horizon is
+	 * rolled to the weeks around now first, as batches are applied by the
+	 * sync adapter. Queries keep using the previous horizon until the
+	 * transaction has been committed. Labels and suggestions no longer used
+	 * by any event are removed as part of the same transaction. Observers are
+	 * notified once, after the transaction has been committed.
+	 * 
+	 * @param operations
+	 *            the operations to apply
+	 * @return the results of the applications
+	 * @throws OperationApplicationException
+	 *             if any operation fails
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(
+			ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = mDBHelper.getWritableDatabase();
+		ContentProviderResult[] results;
+
+		WriteStatements statements = new WriteStatements(db);
+		long[] horizon;
+		long write;
+
+		mBatchStatements.set(statements);
+		db.beginTransactionNonExclusive();
+		try {
+			horizon = EventsDatabaseHelper.rollHorizon(db,
+					System.currentTimeMillis());
+			write = mHorizonWrites.incrementAndGet();
+			results = super.applyBatch(operations);
+			EventsDatabaseHelper.prune(db);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			mBatchStatements.remove();
+			statements.close();
 		}
-		if (values.containsKey(Timetable.Events.COLUMN_NAME_END)) {
-			long temp = values.getAsLong(Timetable.Events.COLUMN_NAME_END);
-			temp = (temp / 1000) * 1000;
-			values.put(Timetable.Events.COLUMN_NAME_END, temp);
+
+		// Queries which read the old horizon in between are loaded again
+		cacheHorizon(horizon, write);
+		getContext().getContentResolver().notifyChange(
+				Timetable.Events.CONTENT_URI, null);
+		return results;
+	}
+
+	/**
+	 * This is called when a client calls
+	 * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}
+	 * . Inserts all of the rows within a single database transaction and
+	 * notifies observers once the transaction has been committed.
+	 * 
+	 * @return The number of rows inserted.
+	 * @throws SQLException
+	 *             if any insertion fails, in which case no rows are inserted.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		// Validates the incoming URI. Only the full provider URI is allowed for
+		// inserts.
+		if (sUriMatcher.match(uri) != EVENTS)
+			throw new IllegalArgumentException("Unknown URI " + uri);
+
+		SQLiteDatabase db = mDBHelper.getWritableDatabase();
+
+		WriteStatements statements = new WriteStatements(db);
+		mBatchStatements.set(statements);
+		db.beginTransactionNonExclusive();
+		try {
+			for (ContentValues v : values)
+				insert(uri, v);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			mBatchStatements.remove();
+			statements.close();
 		}
 
-		// Does the update based on the incoming URI pattern
-		switch (sUriMatcher.match(uri)) {
+		getContext().getContentResolver().notifyChange(uri, null);
+		return values.length;
+	}
 
-		// If the incoming URI matches the general events pattern, does the
-		// update based on
-		// the incoming data.
-		case EVENTS:
+	/**
+	 * Inserts a class and creates an event for each week it takes place on. A
+	 * class with the same key as an existing class replaces it.
+	 * 
+	 * @return URI of the new class
+	 * @throws SQLException
+	 *             if the insertion fails
+	 */
+	private Uri insertClass(SQLiteDatabase db, WriteStatements statements,
+			Uri uri, ContentValues values) {
+		long rowId;
 
-			// Does the update and returns the number of rows updated.
-			count = db.update(Timetable.Events.TABLE_NAME, // The database table
-															// name.
-					values, // A map of column names and new values to use.
-					where, // The where clause column names.
-					whereArgs // The where clause column values to select on.
-					);
-			break;
+		db.beginTransaction();
+		try {
+			rowId = statements.insert(Timetable.Classes.TABLE_NAME, "REPLACE",
+					values);
 
-		// If the incoming URI matches a single event ID, does the update based
-		// on the incoming
-		// data, but modifies the where clause to restrict it to the particular
-		// event ID.
-		case EVENT_ID:
-			/*
-			 * Starts creating the final WHERE clause by restricting it to the
-			 * incoming event ID.
-			 */
-			finalWhere = Timetable.Events._ID + // The ID column name
-					" = " + // test for equality
-					uri.getPathSegments(). // the incoming event ID
-							get(Timetable.Events.EVENT_ID_PATH_POSITION);
+			if (rowId > 0)
+				EventsDatabaseHelper.createClassEvents(statements, rowId);
 
-			// If there were additional selection criteria, append them to the
-			// final WHERE
-			// clause
-			if (where != null)
-				finalWhere = finalWhere + " AND " + where;
-
-			// Does the update and returns the number of rows updated.
-			count = db.update(Timetable.Events.TABLE_NAME, // The database table
-															// name.
-					values, // A map of column names and new values to use.
-					finalWhere, // The final WHERE clause to use
-								// placeholders for whereArgs
-					whereArgs // The where clause column values to select on, or
-								// null if the values are in the where argument.
-					);
-			break;
-		// If the incoming pattern is invalid, throws an exception.
-		default:
-			throw new IllegalArgumentException("Unknown URI " + uri);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
 		}
 
-		/*
-		 * Gets a handle to the content resolver object for the current context,
-		 * and notifies it that the incoming URI changed. The object passes this
-		 * along to the resolver framework, and observers that have registered
-		 * themselves for the provider are notified.
-		 */
-		getContext().getContentResolver().notifyChange(uri, null);
+		if (rowId > 0) {
+			notifyChange(Timetable.Events.CONTENT_URI);
+			return ContentUris.withAppendedId(
+					Timetable.Classes.CONTENT_ID_URI_BASE, rowId);
+		}
+
+		throw new SQLException("Failed to insert row into " + uri);
+	}
+
+	/**
+	 * Updates classes and brings their events in line with them
+	 * 
+	 * @param values
+	 *            values using the columns of the classes table
+	 * @return number of classes updated
+	 */
+	private static int updateClasses(SQLiteDatabase db,
+			WriteStatements statements, ContentValues values, String where,
+			String[] whereArgs) {
+		int count = 0;
+
+		db.beginTransaction();
+		try {
+			// The classes are found first as the update may change the
+			// columns the where clause selects on
+			Cursor c = db.query(Timetable.Classes.TABLE_NAME,
+					new String[] { Timetable.Classes._ID }, where, whereArgs,
+					null, null, null);
+			long[] ids;
+			try {
+				ids = new long[c.getCount()];
+				for (int i = 0; c.moveToNext(); i++)
+					ids[i] = c.getLong(0);
+			} finally {
+				c.close();
+			}
+
+			for (long id : ids)
+				count += updateClass(db, statements, values, id);
+
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
 
-		// Returns the number of rows updated.
 		return count;
 	}
 
+	/**
+	 * Updates a class and brings its events in line with it
+	 * 
+	 * @param values
+	 *            values using the columns of the classes table
+	 * @return number of classes updated
+	 */
+	private static int updateClass(SQLiteDatabase db,
+			WriteStatements statements, ContentValues values, long id) {
+		db.beginTransaction();
+		try {
+			int count = statements.update(Timetable.Classes.TABLE_NAME,
+					values, id);
+			if (count > 0)
+				EventsDatabaseHelper.updateClassEvents(statements, id);
+
+			db.setTransactionSuccessful();
+			return count;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Deletes classes along with the events the sync adapter created for them
+	 * 
+	 * @return number of classes deleted
+	 */
+	private static int deleteClasses(SQLiteDatabase db, String where,
+			String[] whereArgs) {
+		String classes = "SELECT " + Timetable.Classes._ID + " FROM "
+				+ Timetable.Classes.TABLE_NAME;
+		if (where != null)
+			classes += " WHERE " + where;
+
+		db.beginTransaction();
+		try {
+			db.delete(EventsDatabaseHelper.DATA_TABLE_NAME,
+					Timetable.Events.COLUMN_NAME_USER_CREATED + " = 0 AND "
+							+ Timetable.Events.COLUMN_NAME_CLASS_ID + " IN ("
+							+ classes + ")", whereArgs);
+			int count = db.delete(Timetable.Classes.TABLE_NAME, where,
+					whereArgs);
+
+			db.setTransactionSuccessful();
+			return count;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Deletes a class along with the events the sync adapter created for it
+	 * 
+	 * @return number of classes deleted
+	 */
+	private int deleteClass(SQLiteDatabase db, long id) {
+		WriteStatements statements = getStatements(db);
+
+		db.beginTransaction();
+		try {
+			int count = EventsDatabaseHelper.deleteClass(statements, id);
+
+			db.setTransactionSuccessful();
+			return count;
+		} finally {
+			db.endTransaction();
+			releaseStatements(statements);
+		}
+	}
+
+	/**
+	 * Extends the horizon to cover the times from start up to but not
+	 * including end, if it doesn't already. Only opens a transaction, which
+	 * waits for any batch being applied, if it doesn't. Observers aren't
+	 * notified as only the query asking for the times reads them.
+	 */
+	private void coverHorizon(long start, long end) {
+		long[] horizon = mHorizon;
+		if (horizon == null) {
+			horizon = EventsDatabaseHelper.getHorizon(mDBHelper
+					.getReadableDatabase());
+			cacheHorizon(horizon, 0);
+		}
+
+		if (EventsDatabaseHelper.covers(horizon, start, end))
+			return;
+
+		SQLiteDatabase db = mDBHelper.getWritableDatabase();
+		long write;
+
+		db.beginTransactionNonExclusive();
+		try {
+			horizon = EventsDatabaseHelper.extendHorizon(db, start, end);
+			write = mHorizonWrites.incrementAndGet();
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		cacheHorizon(horizon, write);
+	}
+
+	/**
+	 * Keeps the horizon for queries, unless a later write has been kept
+	 * 
+	 * @param write
+	 *            number of the write of the horizon, 0 if it was read
+	 */
+	private synchronized void cacheHorizon(long[] horizon, long write) {
+		if (mHorizon == null || write > mHorizonWrite) {
+			mHorizon = horizon;
+			mHorizonWrite = write;
+		}
+	}
+
+	/**
+	 * Extends the horizon to cover the next events of classes after a time,
+	 * so the events after it are found even beyond the horizon
+	 * 
+	 * @param limit
+	 *            number of events to cover
+	 */
+	private void coverNextClasses(long time, String limit) {
+		long[] starts = EventsDatabaseHelper.getNextClassStarts(
+				mDBHelper.getReadableDatabase(), time, limit);
+		if (starts != null)
+			coverHorizon(starts[0], starts[1] + 1);
+	}
+
+	/**
+	 * Copies values for the events, replacing the labels with the ids of their
+	 * rows in the labels table. Labels which aren't in the table are added.
+	 * 
+	 * @param values
+	 *            values using the columns of the {@link Timetable.Events}
+	 *            contract
+	 * @return values using the columns of the data table
+	 */
+	private static ContentValues toDataValues(WriteStatements statements,
+			ContentValues values) {
+		ContentValues data = new ContentValues(values);
+
+		for (String column : EventsDatabaseHelper.LABEL_COLUMNS) {
+			if (!data.containsKey(column))
+				continue;
+
+			String label = data.getAsString(column);
+			String idColumn = EventsDatabaseHelper.labelIdColumn(column);
+
+			data.remove(column);
+			if (label == null)
+				data.putNull(idColumn);
+			else
+				data.put(idColumn, statements.getLabelId(label));
+		}
+
+		return data;
+	}
+
+	/**
+	 * Sets the last 3 digits of the start and end in the values to 0 to remove
+	 * millisecond error. Times are only truncated as they come in through
+	 * values or the path of a URI, selections are passed to SQLite as given.
+	 */
+	private static void truncateTimes(ContentValues values) {
+		for (String column : new String[] { Timetable.Events.COLUMN_NAME_START,
+				Timetable.Events.COLUMN_NAME_END }) {
+			Long time = values.getAsLong(column);
+			if (time != null)
+				values.put(column, (time / 1000) * 1000);
+		}
+	}
+
+	/**
+	 * Converts a where clause on the columns of the {@link Timetable.Events}
+	 * contract to one for the data table, by selecting the ids of the events
+	 * it matches through the view
+	 * 
+	 * @return where clause for the data table, null if the where clause is
+	 *         null
+	 */
+	private static String toDataWhere(String where) {
+		if (where == null)
+			return null;
+
+		return Timetable.Events._ID + " IN (SELECT " + Timetable.Events._ID
+				+ " FROM " + Timetable.Events.TABLE_NAME + " WHERE " + where
+				+ ")";
+	}
+
+	/**
+	 * @return time in milliseconds held in a segment of the uri's path,
+	 *         truncated to whole seconds as times are held
+	 */
+	private static long getTime(Uri uri, int position) {
+		long time = Long.parseLong(uri.getPathSegments().get(position));
+		return (time / 1000) * 1000;
+	}
+
+	/**
+	 * Restricts the query to the events after the last event of the previous
+	 * page of an agenda, if the uri gives one
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if only one of the start and id of the last event is given
+	 *             or either isn't a number
+	 */
+	private static void appendAfter(SQLiteQueryBuilder qb, Uri uri) {
+		String start = uri
+				.getQueryParameter(Timetable.Events.QUERY_PARAMETER_AFTER_START);
+		String id = uri
+				.getQueryParameter(Timetable.Events.QUERY_PARAMETER_AFTER_ID);
+		if (start == null && id == null)
+			return;
+
+		try {
+			long afterStart = Long.parseLong(start);
+			long afterId = Long.parseLong(id);
+
+			// The first comparison on its own bounds the range of the start
+			// index which is searched
+			qb.appendWhere(" AND " + Timetable.Events.COLUMN_NAME_START
+					+ " >= " + afterStart + " AND ("
+					+ Timetable.Events.COLUMN_NAME_START + " > " + afterStart
+					+ " OR " + Timetable.Events._ID + " > " + afterId + ")");
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid page after " + start
+					+ ", " + id + " in " + uri);
+		}
+	}
+
+	/**
+	 * @return the limit given by the uri's query parameter, or the default
+	 *         limit if it doesn't have one
+	 * @throws IllegalArgumentException
+	 *             if the limit isn't a positive number
+	 */
+	private static String getLimit(Uri uri, String defaultLimit) {
+		String limit = uri
+				.getQueryParameter(Timetable.Events.QUERY_PARAMETER_LIMIT);
+		if (limit == null)
+			return defaultLimit;
+
+		try {
+			if (Integer.parseInt(limit) > 0)
+				return limit;
+		} catch (NumberFormatException e) {
+			// Falls through to the exception below
+		}
+
+		throw new IllegalArgumentException("Invalid limit " + limit + " in "
+				+ uri);
+	}
+
+	/**
+	 * Notifies observers registered against the uri that its data has changed,
+	 * unless a batch is being applied in which case observers are notified
+	 * when the batch completes
+	 * 
+	 * @param uri
+	 *            the uri whose data changed
+	 */
+	private void notifyChange(Uri uri) {
+		if (mBatchStatements.get() == null)
+			getContext().getContentResolver().notifyChange(uri, null);
+	}
+
+	/**
+	 * @return the statements of the batch being applied on the current thread,
+	 *         or new statements for a single change which must be released
+	 *         once it is made
+	 */
+	private WriteStatements getStatements(SQLiteDatabase db) {
+		WriteStatements statements = mBatchStatements.get();
+		return statements != null ? statements : new WriteStatements(db);
+	}
+
+	/**
+	 * Closes statements made for a single change, the statements of a batch
+	 * are kept until the batch completes
+	 */
+	private void releaseStatements(WriteStatements statements) {
+		if (statements != mBatchStatements.get())
+			statements.close();
+	}
+
 }
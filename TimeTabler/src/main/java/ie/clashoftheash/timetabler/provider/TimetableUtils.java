@@ -16,19 +16,14 @@
 
 package ie.clashoftheash.timetabler.provider;
 
-import ie.clashoftheash.timetabler.provider.TimetableProvider.EventsDatabaseHelper;
 import ie.clashoftheash.timetabler.utils.Utils;
 
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Locale;
 import java.util.TimeZone;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteQueryBuilder;
-import android.database.sqlite.SQLiteStatement;
 import android.text.format.Time;
 
 public class TimetableUtils {
@@ -36,6 +31,12 @@ public class TimetableUtils {
 	public static final TimeZone TIMEZONE_UTC = TimeZone
 			.getTimeZone(Time.TIMEZONE_UTC);
 
+	/**
+	 * Offset basis and prime of the 64 bit FNV-1a hash used for sync hashes
+	 */
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
 	/**
 	 * Calculates the first Monday of semester 1 for the current academic year
 	 * and returns the number of milliseconds since epoch in UTC
@@ -44,33 +45,7 @@ public class TimetableUtils {
 	 *         first Monday of semester 1 in UTC
 	 */
 	public static long getFirstMonday() {
-		Calendar cal = Calendar.getInstance(TIMEZONE_UTC);
-		cal.setLenient(true);
-
-		cal.set(Calendar.HOUR, 0);
-		cal.set(Calendar.MINUTE, 0);
-		cal.set(Calendar.SECOND, 0);
-
-		// Set milliseconds to 0 to avoid errors with slightly different times
-		cal.set(Calendar.MILLISECOND, 0);
-
-		// If month before october remove a year
-		int m = cal.get(Calendar.MONTH);
-		if (m < Calendar.OCTOBER)
-			cal.set(Calendar.MONTH, m - 1);
-
-		// Set date to 1st October
-		cal.set(Calendar.MONTH, Calendar.OCTOBER);
-		cal.set(Calendar.DAY_OF_MONTH, 1);
-
-		// If 1st Oct is Mon we want to subtract a week
-		// Otherwise we want to go back to Monday
-		int subtract = (5 + cal.get(Calendar.DAY_OF_WEEK)) % 7;
-		if (subtract == 0)
-			subtract = 7;
-
-		cal.add(Calendar.DAY_OF_YEAR, -subtract);
-		return cal.getTimeInMillis();
+		return AcademicCalendar.getCurrent().getFirstMonday();
 	}
 
 	/**
@@ -82,20 +57,7 @@ public class TimetableUtils {
 	 * @return week number, integer between 1 and 52 inclusive
 	 */
 	public static int getWeekNumber(long time) {
-		Calendar cal = Calendar.getInstance(TIMEZONE_UTC);
-		cal.setLenient(true);
-
-		cal.setTimeInMillis(time);
-
-		Calendar firstMonday = Calendar.getInstance(TIMEZONE_UTC);
-		firstMonday.setTimeInMillis(getFirstMonday());
-
-		int week = 1 + (cal.get(Calendar.WEEK_OF_YEAR) - firstMonday
-				.get(Calendar.WEEK_OF_YEAR));
-		while (week < 1)
-			week += 52;
-
-		return week;
+		return AcademicCalendar.getCurrent().getWeekNumber(time);
 	}
 
 	/**
@@ -108,16 +70,7 @@ public class TimetableUtils {
 	 * @return true if both times occur on the same day, otherwise false
 	 */
 	public static boolean isSameDay(long t1, long t2) {
-		Calendar c1 = Calendar.getInstance(TIMEZONE_UTC);
-		c1.setTimeInMillis(t1);
-
-		Calendar c2 = Calendar.getInstance(TIMEZONE_UTC);
-		c2.setTimeInMillis(t2);
-
-		return c1.get(Calendar.YEAR) == c2.get(Calendar.YEAR)
-				&& c1.get(Calendar.MONTH) == c2.get(Calendar.MONTH)
-				&& c1.get(Calendar.DAY_OF_MONTH) == c2
-						.get(Calendar.DAY_OF_MONTH);
+		return AcademicCalendar.toDay(t1) == AcademicCalendar.toDay(t2);
 	}
 
 	/**
@@ -130,18 +83,7 @@ public class TimetableUtils {
 	 * @return true if t2 is day after t1
 	 */
 	public static boolean isDayAfter(long t1, long t2) {
-		Calendar c1 = Calendar.getInstance(TIMEZONE_UTC);
-		c1.setTimeInMillis(t1);
-
-		Calendar c2 = Calendar.getInstance(TIMEZONE_UTC);
-		c2.setTimeInMillis(t2);
-		c2.add(Calendar.DAY_OF_YEAR, -1); // Go back one day
-
-		// Compare if days are the same now
-		return c1.get(Calendar.YEAR) == c2.get(Calendar.YEAR)
-				&& c1.get(Calendar.MONTH) == c2.get(Calendar.MONTH)
-				&& c1.get(Calendar.DAY_OF_MONTH) == c2
-						.get(Calendar.DAY_OF_MONTH);
+		return AcademicCalendar.toDay(t2) - 1 == AcademicCalendar.toDay(t1);
 	}
 
 	/**
@@ -154,18 +96,7 @@ public class TimetableUtils {
 	 * @return true if t2 is day before t1
 	 */
 	public static boolean isDayBefore(long t1, long t2) {
-		Calendar c1 = Calendar.getInstance(TIMEZONE_UTC);
-		c1.setTimeInMillis(t1);
-
-		Calendar c2 = Calendar.getInstance(TIMEZONE_UTC);
-		c2.setTimeInMillis(t2);
-		c2.add(Calendar.DAY_OF_YEAR, 1); // Go forward one day
-
-		// Compare if days are the same now
-		return c1.get(Calendar.YEAR) == c2.get(Calendar.YEAR)
-				&& c1.get(Calendar.MONTH) == c2.get(Calendar.MONTH)
-				&& c1.get(Calendar.DAY_OF_MONTH) == c2
-						.get(Calendar.DAY_OF_MONTH);
+		return AcademicCalendar.toDay(t2) + 1 == AcademicCalendar.toDay(t1);
 	}
 
 	/**
@@ -192,24 +123,65 @@ public class TimetableUtils {
 	 *         milliseconds passed
 	 */
 	public static String getDBTimeFormat(long time) {
-		Calendar cal = Calendar.getInstance(TIMEZONE_UTC);
-		cal.setTimeInMillis(time);
+		int minutes = (int) (AcademicCalendar.getMillisOfDay(time) / 60000);
+		int hours = minutes / 60;
+		minutes %= 60;
 
-		return new SimpleDateFormat("kk:mm", Locale.ENGLISH).format(cal
-				.getTime());
+		// Hours run from 1 to 24 so midnight is 24:00
+		if (hours == 0)
+			hours = 24;
+
+		return new String(new char[] { (char) ('0' + hours / 10),
+				(char) ('0' + hours % 10), ':', (char) ('0' + minutes / 10),
+				(char) ('0' + minutes % 10) });
 	}
 
 	/**
-	 * Helper method to concatenate the event data into a string seperated by |
+	 * Computes a 64 bit FNV-1a fingerprint of the event data, events with the
+	 * same data have the same fingerprint so comparing them shows if an event
+	 * has changed
 	 */
-	public static String getDBDataFormat(String eventType, String module,
+	public static long getSyncHash(String eventType, String module,
 			String lecturer, String location, int semester, String day,
 			String time, int hours) {
-		return Utils.replaceEncodedChars(eventType) + "|"
-				+ Utils.replaceEncodedChars(module) + "|"
-				+ Utils.replaceEncodedChars(lecturer) + "|"
-				+ Utils.replaceEncodedChars(location) + "|" + semester + "|"
-				+ day + "|" + time + "|" + hours;
+		long hash = FNV_OFFSET_BASIS;
+
+		hash = hash(hash, Utils.replaceEncodedChars(eventType));
+		hash = hash(hash, Utils.replaceEncodedChars(module));
+		hash = hash(hash, Utils.replaceEncodedChars(lecturer));
+		hash = hash(hash, Utils.replaceEncodedChars(location));
+		hash = hash(hash, semester);
+		hash = hash(hash, day);
+		hash = hash(hash, time);
+		hash = hash(hash, hours);
+
+		return hash;
+	}
+
+	/**
+	 * Adds each character of a string to a hash followed by a separator, so
+	 * that neighbouring strings can't run into each other
+	 */
+	private static long hash(long hash, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+				hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+			}
+		}
+
+		return (hash ^ (value == null ? 0xfe : 0xff)) * FNV_PRIME;
+	}
+
+	/**
+	 * Adds each byte of an int to a hash
+	 */
+	private static long hash(long hash, int value) {
+		for (int shift = 0; shift < 32; shift += 8)
+			hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+
+		return hash;
 	}
 
 	/**
@@ -246,30 +218,8 @@ public class TimetableUtils {
 	 * @return true if the table is empty
 	 */
 	public static boolean isDatabaseEmpty(Context context) {
-		return !eventsExistAfter(context,
-					new Time(Time.TIMEZONE_UTC).normalize(true));
-	}
-
-	/**
-	 * Helper method to determine if an event exists after a given time
-	 * 
-	 * @param time
-	 *            number of milliseconds since epoch to check for event
-	 * @return true if an event exists in the database
-	 */
-	private static boolean eventsExistAfter(Context context, long time) {
-		String sql = "SELECT COUNT(*) FROM " + Timetable.Events.TABLE_NAME
-				+ " WHERE " + Timetable.Events.COLUMN_NAME_START + " > '"
-				+ time + "'";
-
-		SQLiteDatabase db = new EventsDatabaseHelper(context)
-				.getReadableDatabase();
-
-		SQLiteStatement statement = db.compileStatement(sql);
-		long count = statement.simpleQueryForLong();
-		db.close();
-
-		return count > 0;
+		return startOfNextEvent(context,
+				new Time(Time.TIMEZONE_UTC).normalize(true)) == -1;
 	}
 
 	/**
@@ -278,35 +228,26 @@ public class TimetableUtils {
 	 * @param time
 	 *            in UTC to be checked for an event occuring after
 	 * 
-	 * @return milliseconds since epoch to start of next event
+	 * @return milliseconds since epoch to start of next event or -1 if there
+	 *         isn't one
 	 */
 	public static long startOfNextEvent(Context context, long time) {
 		String[] projection = { Timetable.Events.COLUMN_NAME_START };
-		String selection = "(" + Timetable.Events.COLUMN_NAME_START + " > ?)";
-		String[] selectionArgs = { "" + time };
 
-		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-		qb.setTables(Timetable.Events.TABLE_NAME);
-		Cursor cur = qb.query(
-				new EventsDatabaseHelper(context).getReadableDatabase(),
-				projection, selection, selectionArgs, null, null,
-				Timetable.Events.DEFAULT_SORT_ORDER, "1");
+		Cursor cur = context.getContentResolver().query(
+				ContentUris.withAppendedId(
+						Timetable.Events.CONTENT_AFTER_URI_BASE, time),
+				projection, null, null, null);
 
 		// If the query fails or the cursor is empty, stop
-		if (cur == null || !cur.moveToFirst()) {
-
-			// If the cursor is empty, simply close the cursor and return
-			if (cur != null) {
-				cur.close();
-			}
-
-			// If the cursor is null, return value indicating this
+		if (cur == null)
 			return -1;
-		}
 
-		long t = cur.getLong(0);
-		cur.close();
-		return t;
+		try {
+			return cur.moveToFirst() ? cur.getLong(0) : -1;
+		} finally {
+			cur.close();
+		}
 	}
 
 	/**
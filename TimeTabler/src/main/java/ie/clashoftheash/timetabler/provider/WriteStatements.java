@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.provider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+
+/**
+ * The compiled statements used to write to the database. Each statement is
+ * compiled the first time it is used and kept until the statements are
+ * closed, so when they are kept for a batch writing a row is a bind and a step
+ * rather than building and compiling its SQL again. Inserts and updates are
+ * keyed by the table and the columns written.
+ * <p>
+ * The ids of labels are remembered as they are looked up. Labels are only
+ * removed once a batch completes, so the statements shouldn't be kept beyond
+ * a single batch or change. They aren't thread safe and should only be used by
+ * the thread which created them.
+ */
+final class WriteStatements {
+
+	private static final String SQL_SELECT_LABEL_ID = "SELECT "
+			+ BaseColumns._ID + " FROM "
+			+ TimetableProvider.EventsDatabaseHelper.LABELS_TABLE_NAME
+			+ " WHERE "
+			+ TimetableProvider.EventsDatabaseHelper.LABELS_COLUMN_NAME_VALUE
+			+ " = ?";
+
+	private static final String SQL_INSERT_LABEL = "INSERT OR IGNORE INTO "
+			+ TimetableProvider.EventsDatabaseHelper.LABELS_TABLE_NAME + " ("
+			+ TimetableProvider.EventsDatabaseHelper.LABELS_COLUMN_NAME_VALUE
+			+ ") VALUES (?)";
+
+	private final SQLiteDatabase mDb;
+
+	private final HashMap<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+
+	private final HashMap<String, Long> mLabelIds = new HashMap<String, Long>();
+
+	private final StringBuilder mSql = new StringBuilder();
+
+	WriteStatements(SQLiteDatabase db) {
+		mDb = db;
+	}
+
+	/**
+	 * @return compiled statement for the sql, with no values bound
+	 */
+	SQLiteStatement get(String sql) {
+		SQLiteStatement statement = mStatements.get(sql);
+		if (statement == null) {
+			statement = mDb.compileStatement(sql);
+			mStatements.put(sql, statement);
+		} else {
+			statement.clearBindings();
+		}
+
+		return statement;
+	}
+
+	/**
+	 * Executes a statement which is bound to a single id
+	 */
+	void execute(String sql, long id) {
+		SQLiteStatement statement = get(sql);
+		statement.bindLong(1, id);
+		statement.execute();
+	}
+
+	/**
+	 * Executes an UPDATE or DELETE statement which is bound to a single id
+	 *
+	 * @return number of rows changed
+	 */
+	int executeUpdateDelete(String sql, long id) {
+		SQLiteStatement statement = get(sql);
+		statement.bindLong(1, id);
+		return statement.executeUpdateDelete();
+	}
+
+	/**
+	 * Inserts a row into a table
+	 *
+	 * @param conflict
+	 *            conflict algorithm to use, REPLACE or IGNORE
+	 * @param values
+	 *            values of the columns of the row, not empty
+	 * @return id of the row or -1 if it wasn't inserted
+	 */
+	long insert(String table, String conflict, ContentValues values) {
+		if (values.size() == 0)
+			throw new IllegalArgumentException("Empty values");
+
+		mSql.setLength(0);
+		mSql.append("INSERT OR ").append(conflict).append(" INTO ")
+				.append(table).append(" (");
+
+		int i = 0;
+		for (Map.Entry<String, Object> value : values.valueSet()) {
+			if (i++ > 0)
+				mSql.append(',');
+			mSql.append(value.getKey());
+		}
+
+		mSql.append(") VALUES (?");
+		for (i = 1; i < values.size(); i++)
+			mSql.append(",?");
+		mSql.append(')');
+
+		SQLiteStatement statement = get(mSql.toString());
+		bind(statement, values);
+		return statement.executeInsert();
+	}
+
+	/**
+	 * Updates a single row of a table
+	 *
+	 * @param values
+	 *            values of the columns to change, not empty
+	 * @return number of rows updated
+	 */
+	int update(String table, ContentValues values, long id) {
+		if (values.size() == 0)
+			throw new IllegalArgumentException("Empty values");
+
+		mSql.setLength(0);
+		mSql.append("UPDATE ").append(table).append(" SET ");
+
+		int i = 0;
+		for (Map.Entry<String, Object> value : values.valueSet()) {
+			if (i++ > 0)
+				mSql.append(',');
+			mSql.append(value.getKey()).append(" = ?");
+		}
+
+		mSql.append(" WHERE ").append(BaseColumns._ID).append(" = ?");
+
+		SQLiteStatement statement = get(mSql.toString());
+		bind(statement, values);
+		statement.bindLong(values.size() + 1, id);
+		return statement.executeUpdateDelete();
+	}
+
+	/**
+	 * @return id of the label, adding it to the labels table if needed
+	 */
+	long getLabelId(String label) {
+		Long cached = mLabelIds.get(label);
+		if (cached != null)
+			return cached;
+
+		long id = queryLabelId(label);
+		if (id == -1) {
+			SQLiteStatement insert = get(SQL_INSERT_LABEL);
+			insert.bindString(1, label);
+
+			// Ignored if it was added since it was looked for
+			id = insert.executeInsert();
+			if (id == -1)
+				id = queryLabelId(label);
+		}
+
+		mLabelIds.put(label, id);
+		return id;
+	}
+
+	/**
+	 * Closes the compiled statements, they can't be used after this
+	 */
+	void close() {
+		for (SQLiteStatement statement : mStatements.values())
+			statement.close();
+
+		mStatements.clear();
+		mLabelIds.clear();
+	}
+
+	/**
+	 * @return id of the label or -1 if it isn't in the labels table
+	 */
+	private long queryLabelId(String label) {
+		SQLiteStatement query = get(SQL_SELECT_LABEL_ID);
+		query.bindString(1, label);
+		try {
+			return query.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Binds the values in the order they were iterated when the SQL was built
+	 */
+	private static void bind(SQLiteStatement statement, ContentValues values) {
+		int i = 1;
+		for (Map.Entry<String, Object> value : values.valueSet())
+			DatabaseUtils.bindObjectToProgram(statement, i++, value.getValue());
+	}
+
+}
@@ -16,7 +16,6 @@
 
 package ie.clashoftheash.timetabler.sync;
 
-import ie.clashoftheash.timetabler.provider.Timetable;
 import ie.clashoftheash.timetabler.provider.TimetableParser;
 import ie.clashoftheash.timetabler.utils.NetworkUtils;
 
@@ -51,29 +50,39 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 			return;
 
 		int[] changes = new int[3];
+		String result = "ok";
+
+		SyncMetrics metrics = new SyncMetrics();
 
 		try {
-			changes = parser.beginParsing(provider);
+			changes = parser.beginParsing(provider, metrics);
 		} catch (MalformedURLException e) {
 			Log.e(TAG, "MalformedURLException", e);
 			ACRA.getErrorReporter().handleSilentException(e);
 			syncResult.stats.numIoExceptions++;
+			result = e.getClass().getSimpleName();
 		} catch (IOException e) {
 			Log.e(TAG, "IOException", e);
 			ACRA.getErrorReporter().handleSilentException(e);
 			syncResult.stats.numIoExceptions++;
+			result = e.getClass().getSimpleName();
 		} catch (Exception e) {
 			Log.e(TAG, "Exception", e);
 			ACRA.getErrorReporter().handleSilentException(e);
 			syncResult.stats.numParseExceptions++;
+			result = e.getClass().getSimpleName();
 		}
 
 		syncResult.stats.numInserts = changes[0];
 		syncResult.stats.numUpdates = changes[1];
 		syncResult.stats.numDeletes = changes[2];
+		syncResult.stats.numEntries = metrics.getEvents();
+
+		metrics.finish(changes, result);
+		SyncMetrics.log(getContext(), metrics);
 
-		getContext().getContentResolver().notifyChange(
-				Timetable.Events.CONTENT_URI, null);
+		// Observers are notified by the provider once the sync's batch of
+		// changes has been committed
 	}
 
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.sync;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.Locale;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Records how long each stage of a sync takes. The measurements from each sync
+ * are kept in a small log on the device which is shown in settings, only the
+ * most recent syncs are kept.
+ * <p>
+ * Both semesters are processed at the same time, so stage times are the total
+ * time spent in that stage across semesters and may add up to more than the
+ * time the sync took.
+ *
+ * @author Ian Kavanagh
+ */
+public class SyncMetrics {
+	private static final String TAG = "SyncMetrics";
+
+	/**
+	 * Stages of a sync
+	 */
+	public static final int STAGE_CONNECT = 0;
+	public static final int STAGE_TRANSFER = 1;
+	public static final int STAGE_PARSE = 2;
+	public static final int STAGE_DIFF = 3;
+	public static final int STAGE_WRITE = 4;
+
+	private static final String[] STAGE_NAMES = { "connect", "transfer",
+			"parse", "diff", "write" };
+
+	private static final String LOG_FILE = "sync_metrics.log";
+
+	/**
+	 * Number of syncs kept in the log
+	 */
+	private static final int MAX_LOG_ENTRIES = 50;
+
+	private static final Object sLogLock = new Object();
+
+	private final long mStarted = System.currentTimeMillis();
+	private final long mStartedNanos = System.nanoTime();
+	private long mFinishedNanos;
+
+	private final long[] mStageNanos = new long[STAGE_NAMES.length];
+	private long mBytes;
+	private int mEvents;
+	private int mPagesSkipped;
+	private int[] mChanges = new int[3];
+	private String mResult = "ok";
+
+	/**
+	 * Adds time spent in a stage
+	 *
+	 * @param stage
+	 *            one of the STAGE constants
+	 * @param nanos
+	 *            time spent in nanoseconds
+	 */
+	public synchronized void addTime(int stage, long nanos) {
+		mStageNanos[stage] += nanos;
+	}
+
+	/**
+	 * Adds to the number of events parsed
+	 */
+	public synchronized void addEvents(int events) {
+		mEvents += events;
+	}
+
+	/**
+	 * Records that a page was skipped as it hasn't changed
+	 */
+	public synchronized void addSkippedPage() {
+		mPagesSkipped++;
+	}
+
+	/**
+	 * @return number of events parsed
+	 */
+	public synchronized int getEvents() {
+		return mEvents;
+	}
+
+	/**
+	 * @return number of pages skipped as they hadn't changed
+	 */
+	public synchronized int getPagesSkipped() {
+		return mPagesSkipped;
+	}
+
+	/**
+	 * Records the outcome of the sync and marks it as finished
+	 *
+	 * @param changes
+	 *            number of inserts, updates and deletes
+	 * @param result
+	 *            "ok" or a short description of the error
+	 */
+	public synchronized void finish(int[] changes, String result) {
+		mFinishedNanos = System.nanoTime();
+		mChanges = changes;
+		mResult = result;
+	}
+
+	/**
+	 * Wraps a stream so the bytes read from it and the time spent waiting on
+	 * it are recorded as the transfer stage
+	 */
+	public MeteredInputStream meter(InputStream stream) {
+		return new MeteredInputStream(stream);
+	}
+
+	private synchronized void addTransfer(long bytes, long nanos) {
+		mBytes += bytes;
+		mStageNanos[STAGE_TRANSFER] += nanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+
+		builder.append(
+				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ENGLISH)
+						.format(new Date(mStarted))).append(' ')
+				.append(mResult).append(' ')
+				.append(toMillis(mFinishedNanos - mStartedNanos)).append("ms");
+
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			builder.append(' ').append(STAGE_NAMES[i]).append('=')
+					.append(toMillis(mStageNanos[i])).append("ms");
+
+			if (i == STAGE_TRANSFER)
+				builder.append('/').append(mBytes / 1024).append("KB");
+		}
+
+		builder.append(" events=").append(mEvents).append(" skipped=")
+				.append(mPagesSkipped).append(" changes=").append(mChanges[0])
+				.append('/').append(mChanges[1]).append('/')
+				.append(mChanges[2]);
+
+		return builder.toString();
+	}
+
+	private static long toMillis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	/**
+	 * Adds the measurements of a sync to the log, removing the oldest syncs
+	 * if the log is full
+	 */
+	public static void log(Context context, SyncMetrics metrics) {
+		synchronized (sLogLock) {
+			LinkedList<String> entries = readEntries(context);
+
+			entries.add(metrics.toString());
+			while (entries.size() > MAX_LOG_ENTRIES)
+				entries.removeFirst();
+
+			Writer writer = null;
+			try {
+				writer = new OutputStreamWriter(context.openFileOutput(
+						LOG_FILE, Context.MODE_PRIVATE), "UTF-8");
+
+				for (String entry : entries)
+					writer.write(entry + "\n");
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to write sync log", e);
+			} finally {
+				if (writer != null) {
+					try {
+						writer.close();
+					} catch (IOException e) {
+						Log.e(TAG, "Failed to close sync log", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the log of recent syncs with the most recent first, empty if
+	 *         no syncs have been logged
+	 */
+	public static String readLog(Context context) {
+		LinkedList<String> entries;
+		synchronized (sLogLock) {
+			entries = readEntries(context);
+		}
+
+		StringBuilder builder = new StringBuilder();
+		while (!entries.isEmpty()) {
+			builder.append(entries.removeLast());
+			if (!entries.isEmpty())
+				builder.append("\n\n");
+		}
+
+		return builder.toString();
+	}
+
+	private static LinkedList<String> readEntries(Context context) {
+		LinkedList<String> entries = new LinkedList<String>();
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					context.openFileInput(LOG_FILE), "UTF-8"));
+
+			String line;
+			while ((line = reader.readLine()) != null)
+				entries.add(line);
+		} catch (FileNotFoundException e) {
+			// Nothing logged yet
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to read sync log", e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					Log.e(TAG, "Failed to close sync log", e);
+				}
+			}
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Records the bytes read from a stream and the time spent waiting on it
+	 */
+	public class MeteredInputStream extends FilterInputStream {
+
+		private long mNanos;
+
+		private MeteredInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * @return time spent waiting on this stream in nanoseconds
+		 */
+		public long getNanos() {
+			return mNanos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = super.read();
+			record(b == -1 ? 0 : 1, System.nanoTime() - start);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			int read = super.read(buffer, offset, count);
+			record(read == -1 ? 0 : read, System.nanoTime() - start);
+			return read;
+		}
+
+		private void record(long bytes, long nanos) {
+			mNanos += nanos;
+			addTransfer(bytes, nanos);
+		}
+	}
+
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.ui;
+
+import ie.clashoftheash.timetabler.R;
+import ie.clashoftheash.timetabler.provider.Timetable;
+import ie.clashoftheash.timetabler.provider.TimetableProvider;
+import ie.clashoftheash.timetabler.provider.TimetableUtils;
+import ie.clashoftheash.timetabler.ui.widget.AgendaAdapter;
+import ie.clashoftheash.timetabler.ui.widget.SimpleSectionedListAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
+import android.widget.ListView;
+
+/**
+ * Loads the events starting between two times and builds the agenda shown by
+ * {@link EventListFragment} in the background, so the UI thread only has to
+ * swap the agenda in once it is loaded.
+ * <p>
+ * When the times are moved further apart only the events between the new and
+ * old times are loaded and sectioned, then added to the agenda already
+ * loaded. The whole agenda is only loaded again when the events change.
+ * <p>
+ * The times of each event are formatted here too so binding an event to its
+ * view doesn't need to do any work.
+ */
+public class AgendaLoader extends AsyncTaskLoader<AgendaLoader.Agenda> {
+
+	/**
+	 * Number of events loaded in each query, as a string for the query
+	 * parameter
+	 */
+	private static final String PAGE_SIZE = String
+			.valueOf(Timetable.Events.AGENDA_PAGE_SIZE);
+
+	/**
+	 * Events between two times, split into a section for each day
+	 */
+	public static class Agenda {
+		public final List<AgendaAdapter.Event> events;
+		public final SimpleSectionedListAdapter.Section[] sections;
+
+		/**
+		 * Position of the event taking place now, or the first event after
+		 * now if there isn't one. {@link ListView#INVALID_POSITION} if every
+		 * event has finished.
+		 */
+		public final int nowPosition;
+
+		/**
+		 * Whether the times of the events were formatted using a 24 hour clock
+		 */
+		public final boolean is24HourFormat;
+
+		/**
+		 * Times in UTC between which events were loaded and the generation of
+		 * the events they were loaded from
+		 */
+		private final long head, tail;
+		private final int generation;
+
+		/**
+		 * Time the sections were labelled at, the labels of the days around
+		 * it are relative to its day
+		 */
+		private final long labelTime;
+
+		private Agenda(List<AgendaAdapter.Event> events,
+				SimpleSectionedListAdapter.Section[] sections, int nowPosition,
+				boolean is24HourFormat, long head, long tail, int generation,
+				long labelTime) {
+			this.events = events;
+			this.sections = sections;
+			this.nowPosition = nowPosition;
+			this.is24HourFormat = is24HourFormat;
+			this.head = head;
+			this.tail = tail;
+			this.generation = generation;
+			this.labelTime = labelTime;
+		}
+	}
+
+	/**
+	 * Times in UTC between which events are loaded
+	 */
+	private long mHead, mTail;
+
+	/**
+	 * Incremented each time the events change, an agenda can only be extended
+	 * if it was loaded from the current generation of events
+	 */
+	private int mGeneration;
+
+	private Agenda mAgenda;
+
+	/**
+	 * @param head
+	 *            time in UTC of the earliest event start to load
+	 * @param tail
+	 *            time in UTC of the latest event start to load
+	 */
+	public AgendaLoader(Context context, long head, long tail) {
+		super(context);
+
+		mHead = toSeconds(head);
+		mTail = toSeconds(tail);
+	}
+
+	/**
+	 * Changes the times between which events are loaded. If the new times
+	 * cover the agenda already loaded only the events outside of it are
+	 * loaded and added to it.
+	 * 
+	 * @param head
+	 *            time in UTC of the earliest event start to load
+	 * @param tail
+	 *            time in UTC of the latest event start to load
+	 */
+	public void setWindow(long head, long tail) {
+		synchronized (this) {
+			mHead = toSeconds(head);
+			mTail = toSeconds(tail);
+		}
+
+		onContentChanged();
+	}
+
+	/**
+	 * Reloads every event in the agenda, to be called when the events have
+	 * changed
+	 */
+	public void reload() {
+		synchronized (this) {
+			mGeneration++;
+		}
+
+		onContentChanged();
+	}
+
+	@Override
+	public Agenda loadInBackground() {
+		long head, tail;
+		int generation;
+		Agenda base;
+
+		synchronized (this) {
+			head = mHead;
+			tail = mTail;
+			generation = mGeneration;
+			base = mAgenda;
+		}
+
+		// Remove millisecond error
+		long currentTime = (System.currentTimeMillis() / 1000) * 1000;
+
+		boolean is24HourFormat = DateFormat.is24HourFormat(getContext());
+		TimeOfDayFormatter timeFormat = new TimeOfDayFormatter(
+				DateFormat.getTimeFormat(getContext()));
+
+		// Times already formatted can't be reused if the clock has changed,
+		// nor sections labelled today or tomorrow once the day has changed
+		if (base != null && base.generation == generation && head <= base.head
+				&& tail >= base.tail && base.is24HourFormat == is24HourFormat
+				&& TimetableUtils.isSameDay(base.labelTime, currentTime))
+			return extendAgenda(base, head, tail, currentTime, timeFormat);
+
+		List<AgendaAdapter.Event> events = queryEvents(head, tail, timeFormat);
+		List<SimpleSectionedListAdapter.Section> sections = new ArrayList<SimpleSectionedListAdapter.Section>();
+		buildSections(events, 0, -1, currentTime, timeFormat, sections);
+
+		return new Agenda(events, toArray(sections), findNowPosition(events,
+				0, currentTime), is24HourFormat, head, tail, generation,
+				currentTime);
+	}
+
+	/**
+	 * Loads only the events between the new times and the times of the agenda
+	 * and adds them to either end of it. Sections for the existing events are
+	 * reused, whether their days have started and the position of now are
+	 * found again as time has moved on.
+	 */
+	private Agenda extendAgenda(Agenda base, long head, long tail,
+			long currentTime, TimeOfDayFormatter timeFormat) {
+		// The times are whole seconds, as are the times the provider compares,
+		// so the new slices start a second on from the times already loaded
+		List<AgendaAdapter.Event> before = head < base.head ? queryEvents(
+				head, base.head - 1000, timeFormat)
+				: new ArrayList<AgendaAdapter.Event>();
+		List<AgendaAdapter.Event> after = tail > base.tail ? queryEvents(
+				base.tail + 1000, tail, timeFormat)
+				: new ArrayList<AgendaAdapter.Event>();
+
+		if (before.isEmpty() && after.isEmpty()) {
+			List<SimpleSectionedListAdapter.Section> sections = new ArrayList<SimpleSectionedListAdapter.Section>(
+					base.sections.length);
+			for (SimpleSectionedListAdapter.Section section : base.sections)
+				sections.add(moveSection(section, 0, base.events, currentTime));
+
+			return new Agenda(base.events, toArray(sections), findNowPosition(
+					base.events, 0, currentTime), base.is24HourFormat, head,
+					tail, base.generation, base.labelTime);
+		}
+
+		int offset = before.size();
+
+		List<AgendaAdapter.Event> events = new ArrayList<AgendaAdapter.Event>(
+				offset + base.events.size() + after.size());
+		events.addAll(before);
+		events.addAll(base.events);
+
+		List<SimpleSectionedListAdapter.Section> sections = new ArrayList<SimpleSectionedListAdapter.Section>(
+				base.sections.length);
+		buildSections(before, 0, -1, currentTime, timeFormat, sections);
+
+		// Existing sections move down by the number of events added before
+		// them, the first is dropped if the added events finish on its day
+		for (SimpleSectionedListAdapter.Section section : base.sections) {
+			if (offset > 0
+					&& section.getFirstPosition() == 0
+					&& TimetableUtils.isSameDay(before.get(offset - 1).start,
+							events.get(offset).start))
+				continue;
+
+			sections.add(moveSection(section, offset, events, currentTime));
+		}
+
+		long previousBlockStart = events.isEmpty() ? -1 : events.get(events
+				.size() - 1).start;
+		buildSections(after, events.size(), previousBlockStart, currentTime,
+				timeFormat, sections);
+		events.addAll(after);
+
+		return new Agenda(events, toArray(sections), findNowPosition(events,
+				0, currentTime), base.is24HourFormat, head, tail,
+				base.generation, base.labelTime);
+	}
+
+	/**
+	 * Loads the events which start between two times. They are loaded a page
+	 * at a time, so a cursor only holds a page of events at once however far
+	 * apart the times are. The events returned, which the agenda holds, still
+	 * grow with the times.
+	 * 
+	 * @param timeFormat
+	 *            formatter used to display the times of the events
+	 */
+	private List<AgendaAdapter.Event> queryEvents(long head, long tail,
+			TimeOfDayFormatter timeFormat) {
+		List<AgendaAdapter.Event> events = new ArrayList<AgendaAdapter.Event>();
+
+		Uri window = ContentUris.appendId(
+				ContentUris.appendId(
+						Timetable.Events.CONTENT_AGENDA_URI_BASE.buildUpon(),
+						head), tail).build();
+
+		int count;
+		do {
+			Uri.Builder page = window.buildUpon().appendQueryParameter(
+					Timetable.Events.QUERY_PARAMETER_LIMIT, PAGE_SIZE);
+
+			// Each page follows on from the last event loaded
+			if (!events.isEmpty()) {
+				AgendaAdapter.Event last = events.get(events.size() - 1);
+				page.appendQueryParameter(
+						Timetable.Events.QUERY_PARAMETER_AFTER_START,
+						String.valueOf(last.start)).appendQueryParameter(
+						Timetable.Events.QUERY_PARAMETER_AFTER_ID,
+						String.valueOf(last.id));
+			}
+
+			Cursor cursor = getContext().getContentResolver().query(
+					page.build(), TimetableProvider.READ_EVENT_PROJECTION,
+					null, null, null);
+			if (cursor == null)
+				break;
+
+			try {
+				count = cursor.getCount();
+				while (cursor.moveToNext()) {
+					long start = cursor
+							.getLong(TimetableProvider.READ_EVENT_START_INDEX);
+					long end = cursor
+							.getLong(TimetableProvider.READ_EVENT_END_INDEX);
+
+					events.add(new AgendaAdapter.Event(
+							cursor.getLong(TimetableProvider.READ_EVENT_ID_INDEX),
+							cursor.getString(TimetableProvider.READ_EVENT_EVENT_TYPE_INDEX),
+							cursor.getString(TimetableProvider.READ_EVENT_MODULE_INDEX),
+							cursor.getString(TimetableProvider.READ_EVENT_LECTURER_INDEX),
+							cursor.getString(TimetableProvider.READ_EVENT_LOCATION_INDEX),
+							start, end, timeFormat.format(start),
+							timeFormat.format(end), timeFormat.toLocal(end)));
+				}
+			} finally {
+				cursor.close();
+			}
+		} while (count == Timetable.Events.AGENDA_PAGE_SIZE);
+
+		return events;
+	}
+
+	/**
+	 * Adds a section for each day of the events
+	 * 
+	 * @param events
+	 *            events to section
+	 * @param firstPosition
+	 *            position of the first event in the agenda
+	 * @param previousBlockStart
+	 *            start of the event before the first event in the agenda or
+	 *            -1 if there isn't one
+	 * @param timeFormat
+	 *            formatter used to find the local time of each day
+	 * @param sections
+	 *            list to add the sections to
+	 */
+	private void buildSections(List<AgendaAdapter.Event> events,
+			int firstPosition, long previousBlockStart, long currentTime,
+			TimeOfDayFormatter timeFormat,
+			List<SimpleSectionedListAdapter.Section> sections) {
+		Context context = getContext();
+
+		for (int i = 0; i < events.size(); i++) {
+			AgendaAdapter.Event event = events.get(i);
+
+			long startMillis = event.start;
+
+			if (!TimetableUtils.isSameDay(previousBlockStart, startMillis)) {
+				long blockStart = timeFormat.toLocal(startMillis);
+				String day;
+
+				if (TimetableUtils.isSameDay(currentTime, startMillis))
+					day = context.getString(R.string.today) + ", ";
+				else if (TimetableUtils.isDayBefore(currentTime, startMillis))
+					day = context.getString(R.string.yesterday) + ", ";
+				else if (TimetableUtils.isDayAfter(currentTime, startMillis))
+					day = context.getString(R.string.tomorrow) + ", ";
+				else
+					day = "";
+
+				String[] text = {
+						DateUtils.formatDateTime(context, blockStart,
+								DateUtils.FORMAT_SHOW_DATE
+										| DateUtils.FORMAT_SHOW_YEAR),
+						context.getString(R.string.week) + " "
+								+ TimetableUtils.getWeekNumber(blockStart),
+						day
+								+ DateUtils.formatDateTime(context, blockStart,
+										DateUtils.FORMAT_SHOW_WEEKDAY) };
+				sections.add(new SimpleSectionedListAdapter.Section(
+						firstPosition + i, text, startMillis < currentTime));
+			}
+
+			previousBlockStart = startMillis;
+		}
+	}
+
+	/**
+	 * Moves an existing section down by the number of events added before it.
+	 * It shows the overlay if its first event has started, as
+	 * {@link #buildSections} decides, since that may have happened since it
+	 * was built.
+	 * 
+	 * @param events
+	 *            events of the agenda including those added
+	 * @return the moved section
+	 */
+	private static SimpleSectionedListAdapter.Section moveSection(
+			SimpleSectionedListAdapter.Section section, int offset,
+			List<AgendaAdapter.Event> events, long currentTime) {
+		int position = section.getFirstPosition() + offset;
+		return section.offset(offset,
+				events.get(position).start < currentTime);
+	}
+
+	/**
+	 * Finds the event taking place now, or the first event after now if there
+	 * isn't one
+	 * 
+	 * @param firstPosition
+	 *            position of the first event in the agenda
+	 * @return position of the event in the agenda or
+	 *         {@link ListView#INVALID_POSITION} if every event has finished
+	 */
+	private static int findNowPosition(List<AgendaAdapter.Event> events,
+			int firstPosition, long currentTime) {
+		for (int i = 0; i < events.size(); i++) {
+			AgendaAdapter.Event event = events.get(i);
+
+			// if we're currently in this block, or we're not in a block and
+			// this block is in the future, then this is the now position
+			if ((event.start < currentTime && currentTime < event.end)
+					|| event.start > currentTime)
+				return firstPosition + i;
+		}
+
+		return ListView.INVALID_POSITION;
+	}
+
+	/**
+	 * @return the time truncated to whole seconds, as the provider compares
+	 *         times
+	 */
+	private static long toSeconds(long time) {
+		return (time / 1000) * 1000;
+	}
+
+	private static SimpleSectionedListAdapter.Section[] toArray(
+			List<SimpleSectionedListAdapter.Section> sections) {
+		return sections.toArray(new SimpleSectionedListAdapter.Section[sections
+				.size()]);
+	}
+
+	@Override
+	public void deliverResult(Agenda agenda) {
+		synchronized (this) {
+			mAgenda = agenda;
+		}
+
+		if (isStarted())
+			super.deliverResult(agenda);
+	}
+
+	@Override
+	protected void onStartLoading() {
+		if (mAgenda != null)
+			deliverResult(mAgenda);
+
+		if (takeContentChanged() || mAgenda == null)
+			forceLoad();
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+
+		onStopLoading();
+
+		synchronized (this) {
+			mAgenda = null;
+		}
+	}
+
+}
@@ -43,6 +43,7 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.TypedValue;
@@ -86,6 +87,12 @@ public class CreateEventActivity extends Activity implements
 	 */
 	private static final String SELECTION_ARGS = "selection_args";
 
+	/**
+	 * Time in milliseconds typing must pause for before suggestions are
+	 * loaded, so they aren't loaded again for every key pressed
+	 */
+	private static final long SUGGESTION_DELAY = 300;
+
 	/**
 	 * Constants to denote which adapter we are working with
 	 */
@@ -108,6 +115,7 @@ public class CreateEventActivity extends Activity implements
 	// Loader and Adapter references for AutoCompleteTextViews
 	private LoaderCallbacks loaderCallbacks;
 	private SimpleCursorAdapter moduleAdapter, lecturerAdapter;
+	private final Handler mHandler = new Handler();
 
 	private DateFormat mDateFormat, mTimeFormat;
 
@@ -300,71 +308,25 @@ public class CreateEventActivity extends Activity implements
 
 		moduleAdapter = new AutoCompleteTextViewCursorAdapter(this,
 				android.R.layout.simple_dropdown_item_1line, null,
-				new String[] { Timetable.Events.COLUMN_NAME_MODULE },
+				new String[] { Timetable.Suggestions.COLUMN_NAME_VALUE },
 				new int[] { android.R.id.text1 }, 0);
 
 		moduleView.setAdapter(moduleAdapter);
 
-		// Requery database as text is changed
-		moduleView.addTextChangedListener(new TextWatcher() {
-
-			@Override
-			public void afterTextChanged(Editable s) {
-				if (s.length() > 1) {
-					Bundle args = new Bundle();
-					args.putStringArray(SELECTION_ARGS, new String[] { "%"
-							+ moduleView.getText().toString() + "%" });
-
-					getLoaderManager().restartLoader(MODULE, args,
-							loaderCallbacks);
-				}
-			}
-
-			@Override
-			public void beforeTextChanged(CharSequence s, int start, int count,
-					int after) {
-			}
-
-			@Override
-			public void onTextChanged(CharSequence s, int start, int before,
-					int count) {
-			}
-
-		});
+		// Requery suggestions once typing pauses
+		moduleView.addTextChangedListener(new SuggestionWatcher(MODULE,
+				Timetable.Suggestions.TYPE_MODULE));
 
 		lecturerAdapter = new AutoCompleteTextViewCursorAdapter(this,
 				android.R.layout.simple_dropdown_item_1line, null,
-				new String[] { Timetable.Events.COLUMN_NAME_LECTURER },
+				new String[] { Timetable.Suggestions.COLUMN_NAME_VALUE },
 				new int[] { android.R.id.text1 }, 0);
 
 		lecturerView.setAdapter(lecturerAdapter);
 
-		// Requery database as text is changed
-		lecturerView.addTextChangedListener(new TextWatcher() {
-
-			@Override
-			public void afterTextChanged(Editable s) {
-				if (s.length() > 1) {
-					Bundle args = new Bundle();
-					args.putStringArray(SELECTION_ARGS, new String[] { "%"
-							+ lecturerView.getText().toString() + "%" });
-
-					getLoaderManager().restartLoader(LECTURER, args,
-							loaderCallbacks);
-				}
-			}
-
-			@Override
-			public void beforeTextChanged(CharSequence s, int start, int count,
-					int after) {
-			}
-
-			@Override
-			public void onTextChanged(CharSequence s, int start, int before,
-					int count) {
-			}
-
-		});
+		// Requery suggestions once typing pauses
+		lecturerView.addTextChangedListener(new SuggestionWatcher(LECTURER,
+				Timetable.Suggestions.TYPE_LECTURER));
 
 		locationView = (EditText) findViewById(R.id.location);
 		notesView = (EditText) findViewById(R.id.notes);
@@ -446,6 +408,14 @@ public class CreateEventActivity extends Activity implements
 		}
 	}
 
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+
+		// Don't load suggestions for views which are gone
+		mHandler.removeCallbacksAndMessages(null);
+	}
+
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
 		super.onSaveInstanceState(outState);
@@ -735,27 +705,59 @@ public class CreateEventActivity extends Activity implements
 	 * Interface to define strings for use with AutoCompleteTextView data loads
 	 */
 	private interface Query {
+		static final String[] PROJECTION = { Timetable.Suggestions._ID,
+				Timetable.Suggestions.COLUMN_NAME_VALUE };
+	}
+
+	/**
+	 * Loads suggestions starting with the text of a view once the text
+	 * hasn't changed for {@link #SUGGESTION_DELAY}
+	 */
+	private class SuggestionWatcher implements TextWatcher, Runnable {
 
-		static interface Module {
-			static final String[] PROJECTION = { Timetable.Events._ID,
-					Timetable.Events.COLUMN_NAME_MODULE };
-			static final String SELECTION = "(("
-					+ Timetable.Events.COLUMN_NAME_USER_DELETED
-					+ " = '0') AND (" + Timetable.Events.COLUMN_NAME_MODULE
-					+ " LIKE ?))";
-			static final String SORT_ORDER = Timetable.Events.COLUMN_NAME_MODULE
-					+ " ASC";
+		private final int mLoaderId;
+		private final int mType;
+		private String mPrefix;
+
+		/**
+		 * @param loaderId
+		 *            MODULE or LECTURER
+		 * @param type
+		 *            type of suggestion to load
+		 */
+		SuggestionWatcher(int loaderId, int type) {
+			mLoaderId = loaderId;
+			mType = type;
 		}
 
-		static interface Lecturer {
-			static final String[] PROJECTION = { Timetable.Events._ID,
-					Timetable.Events.COLUMN_NAME_LECTURER };
-			static final String SELECTION = "(("
-					+ Timetable.Events.COLUMN_NAME_USER_DELETED
-					+ " = '0') AND (" + Timetable.Events.COLUMN_NAME_LECTURER
-					+ " LIKE ?))";
-			static final String SORT_ORDER = Timetable.Events.COLUMN_NAME_LECTURER
-					+ " ASC";
+		@Override
+		public void afterTextChanged(Editable s) {
+			mHandler.removeCallbacks(this);
+
+			if (s.length() > 1) {
+				mPrefix = s.toString();
+				mHandler.postDelayed(this, SUGGESTION_DELAY);
+			}
+		}
+
+		@Override
+		public void beforeTextChanged(CharSequence s, int start, int count,
+				int after) {
+		}
+
+		@Override
+		public void onTextChanged(CharSequence s, int start, int before,
+				int count) {
+		}
+
+		@Override
+		public void run() {
+			Bundle args = new Bundle();
+			args.putStringArray(SELECTION_ARGS,
+					new String[] { String.valueOf(mType), mPrefix,
+							mPrefix + Timetable.Suggestions.PREFIX_END });
+
+			getLoaderManager().restartLoader(mLoaderId, args, loaderCallbacks);
 		}
 
 	}
@@ -768,17 +770,12 @@ public class CreateEventActivity extends Activity implements
 			// Set up a cursor loader for the specific view
 			switch (id) {
 			case MODULE:
-				return new CursorLoader(getApplicationContext(),
-						Timetable.Events.CONTENT_URI, Query.Module.PROJECTION,
-						Query.Module.SELECTION,
-						args.getStringArray(SELECTION_ARGS),
-						Query.Module.SORT_ORDER);
 			case LECTURER:
 				return new CursorLoader(getApplicationContext(),
-						Timetable.Events.CONTENT_URI,
-						Query.Lecturer.PROJECTION, Query.Lecturer.SELECTION,
+						Timetable.Suggestions.CONTENT_URI, Query.PROJECTION,
+						Timetable.Suggestions.SELECTION_PREFIX,
 						args.getStringArray(SELECTION_ARGS),
-						Query.Lecturer.SORT_ORDER);
+						Timetable.Suggestions.DEFAULT_SORT_ORDER);
 			default:
 				throw new IllegalArgumentException(
 						"Only 2 types of loader can exist, module and lecturer");
@@ -18,23 +18,17 @@ package ie.clashoftheash.timetabler.ui;
 
 import ie.clashoftheash.timetabler.R;
 import ie.clashoftheash.timetabler.provider.Timetable;
-import ie.clashoftheash.timetabler.provider.TimetableProvider;
 import ie.clashoftheash.timetabler.provider.TimetableUtils;
 import ie.clashoftheash.timetabler.ui.widget.AgendaAdapter;
 import ie.clashoftheash.timetabler.ui.widget.SimpleSectionedListAdapter;
 
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
-import java.util.TimeZone;
 
 import android.app.Activity;
 import android.app.ListFragment;
 import android.app.LoaderManager;
-import android.content.CursorLoader;
 import android.content.Loader;
 import android.database.ContentObserver;
-import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
@@ -58,14 +52,7 @@ import android.widget.TextView;
  * interface.
  */
 public class EventListFragment extends ListFragment implements
-		LoaderManager.LoaderCallbacks<Cursor> {
-
-	/**
-	 * Selection used to get events for Agenda
-	 */
-	private static final String SELECTION = "(("
-			+ Timetable.Events.COLUMN_NAME_END + " BETWEEN ? AND ?) AND ("
-			+ Timetable.Events.COLUMN_NAME_USER_DELETED + " = '0'))";
+		LoaderManager.LoaderCallbacks<AgendaLoader.Agenda> {
 
 	/**
 	 * The serialization (saved instance state) Bundle key representing the
@@ -73,22 +60,6 @@ public class EventListFragment extends ListFragment implements
 	 */
 	private static final String STATE_ACTIVATED_POSITION = "activated_position";
 
-	/**
-	 * List of column names representing the data to bind to the UI
-	 */
-	private static final String[] from = {
-			Timetable.Events.COLUMN_NAME_EVENT_TYPE,
-			Timetable.Events.COLUMN_NAME_MODULE,
-			Timetable.Events.COLUMN_NAME_LECTURER,
-			Timetable.Events.COLUMN_NAME_LOCATION };
-
-	/**
-	 * The views that should display column in the "from" parameter for the list
-	 * block
-	 */
-	private static final int[] toBlock = { R.id.event_type, R.id.module,
-			R.id.lecturer, R.id.location };
-
 	/**
 	 * The views that should display column in the "from" parameter for the list
 	 * header
@@ -107,7 +78,7 @@ public class EventListFragment extends ListFragment implements
 	private int mActivatedPosition = ListView.INVALID_POSITION;
 
 	/**
-	 * Holds first id in cursor to set scroll position of listview when items
+	 * Holds first id in agenda to set scroll position of listview when items
 	 * being loaded into head of listview
 	 */
 	private long firstId = ListView.INVALID_ROW_ID;
@@ -128,7 +99,7 @@ public class EventListFragment extends ListFragment implements
 	private Calendar head, tail;
 
 	/**
-	 * Reference to AgendaAdapter, needed for changing cursor on load
+	 * Reference to AgendaAdapter, needed for changing events on load
 	 */
 	private AgendaAdapter mAgendaAdapter;
 
@@ -256,7 +227,7 @@ public class EventListFragment extends ListFragment implements
 
 				mScrollToNow = true;
 
-				restartLoader();
+				extendWindow();
 			}
 		});
 
@@ -281,7 +252,7 @@ public class EventListFragment extends ListFragment implements
 				footerView.findViewById(android.R.id.progress).setVisibility(
 						View.VISIBLE);
 
-				restartLoader();
+				extendWindow();
 			}
 		});
 
@@ -310,8 +281,7 @@ public class EventListFragment extends ListFragment implements
 		// The AgendaAdapter is wrapped in a SimpleSectionedListAdapter so that
 		// we can show list headers separating out the different days
 		// (Wednesday/Thursday/Friday).
-		mAgendaAdapter = new AgendaAdapter(getActivity(),
-				R.layout.list_item_agenda_block, from, toBlock);
+		mAgendaAdapter = new AgendaAdapter(getActivity());
 		SimpleSectionedListAdapter mAdapter = new SimpleSectionedListAdapter(
 				getActivity(), R.layout.list_item_agenda_header, toHeader,
 				mAgendaAdapter);
@@ -364,22 +334,13 @@ public class EventListFragment extends ListFragment implements
 	}
 
 	@Override
-	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-		Calendar tempHead = TimetableUtils.switchTimeZone(head,
-				TimetableUtils.TIMEZONE_UTC);
-		Calendar tempTail = TimetableUtils.switchTimeZone(tail,
-				TimetableUtils.TIMEZONE_UTC);
-
-		String[] selectionArgs = { String.valueOf(tempHead.getTimeInMillis()),
-				String.valueOf(tempTail.getTimeInMillis()) };
-
-		return new CursorLoader(getActivity(), Timetable.Events.CONTENT_URI,
-				TimetableProvider.READ_EVENT_PROJECTION, SELECTION,
-				selectionArgs, Timetable.Events.DEFAULT_SORT_ORDER);
+	public Loader<AgendaLoader.Agenda> onCreateLoader(int id, Bundle args) {
+		return new AgendaLoader(getActivity(), toUtc(head), toUtc(tail));
 	}
 
 	@Override
-	public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+	public void onLoadFinished(Loader<AgendaLoader.Agenda> loader,
+			AgendaLoader.Agenda agenda) {
 		if (getActivity() == null)
 			return;
 
@@ -397,7 +358,7 @@ public class EventListFragment extends ListFragment implements
 
 		// TODO: have events remaining checked when footer load brings back the
 		// same amount of events as last time
-		if ((eventCount = cursor.getCount()) == 0) {
+		if ((eventCount = agenda.events.size()) == 0) {
 			if (futureEvents)
 				new QueryEventsRemainingTask().execute();
 			else
@@ -418,101 +379,37 @@ public class EventListFragment extends ListFragment implements
 									| DateUtils.FORMAT_SHOW_DATE));
 		}
 
-		// Build sections
-		long currentTime = (Calendar.getInstance(TimetableUtils.TIMEZONE_UTC)
-				.getTimeInMillis() / 1000) * 1000; // Remove millisecond error
-
-		int firstNowPosition = ListView.INVALID_POSITION;
-
-		List<SimpleSectionedListAdapter.Section> sections = new ArrayList<SimpleSectionedListAdapter.Section>();
-		cursor.moveToFirst();
-
-		long previousBlockStart = -1;
-		long blockStart;
-		while (!cursor.isAfterLast()) {
-			Calendar start = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
-			start.setTimeInMillis(cursor
-					.getLong(TimetableProvider.READ_EVENT_START_INDEX));
-
-			blockStart = TimetableUtils.switchTimeZone(start,
-					TimeZone.getDefault()).getTimeInMillis();
-
-			long startMillis = start.getTimeInMillis();
-
-			Calendar end = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
-			end.setTimeInMillis(cursor
-					.getLong(TimetableProvider.READ_EVENT_END_INDEX));
-
-			if (!TimetableUtils.isSameDay(previousBlockStart,
-					start.getTimeInMillis())) {
-				String day;
-
-				if (TimetableUtils.isSameDay(currentTime, startMillis))
-					day = getString(R.string.today) + ", ";
-				else if (TimetableUtils.isDayBefore(currentTime, startMillis))
-					day = getString(R.string.yesterday) + ", ";
-				else if (TimetableUtils.isDayAfter(currentTime, startMillis))
-					day = getString(R.string.tomorrow) + ", ";
-				else
-					day = "";
-
-				String[] text = {
-						DateUtils.formatDateTime(getActivity(), blockStart,
-								DateUtils.FORMAT_SHOW_DATE
-										| DateUtils.FORMAT_SHOW_YEAR),
-						getString(R.string.week) + " "
-								+ TimetableUtils.getWeekNumber(blockStart),
-						day
-								+ DateUtils.formatDateTime(getActivity(),
-										blockStart,
-										DateUtils.FORMAT_SHOW_WEEKDAY) };
-				sections.add(new SimpleSectionedListAdapter.Section(cursor
-						.getPosition(), text, startMillis < currentTime));
-			}
-			if (mScrollToNow && firstNowPosition == ListView.INVALID_POSITION
-			// if we're currently in this block, or we're not in a block
-			// and this block is in the future, then this is the scroll
-			// position
-					&& ((startMillis < currentTime && currentTime < end
-							.getTimeInMillis()) || startMillis > currentTime)) {
-				firstNowPosition = cursor.getPosition();
-			}
-			previousBlockStart = startMillis;
-			cursor.moveToNext();
-		}
-
-		mAgendaAdapter.changeCursor(cursor);
+		// Agenda is already sectioned, only needs to be swapped in
+		mAgendaAdapter.setEvents(agenda.events,
+				agenda.is24HourFormat);
 
-		SimpleSectionedListAdapter.Section[] holder = new SimpleSectionedListAdapter.Section[sections
-				.size()];
-		((SimpleSectionedListAdapter) getListAdapter()).setSections(sections
-				.toArray(holder));
+		SimpleSectionedListAdapter adapter = (SimpleSectionedListAdapter) getListAdapter();
+		adapter.setSections(agenda.sections);
 
 		// Set scroll position
+		int firstNowPosition;
 		if (firstId != ListView.INVALID_ROW_ID) {
-			// loop through cursor to find position of id to scroll to
-			cursor.moveToFirst();
+			// loop through agenda to find position of id to scroll to
 			firstNowPosition = ListView.INVALID_POSITION;
-			while (!cursor.isAfterLast()
-					&& firstNowPosition == ListView.INVALID_POSITION) {
-				if (firstId == cursor.getLong(0)) {
-					firstNowPosition = cursor.getPosition();
+			for (int i = 0; i < eventCount; i++) {
+				if (firstId == agenda.events.get(i).id) {
+					firstNowPosition = i;
+					break;
 				}
-				cursor.moveToNext();
 			}
-			firstNowPosition = ((SimpleSectionedListAdapter) getListAdapter())
+			firstNowPosition = adapter
 					.positionToSectionedPosition(firstNowPosition);
 			lv.setSelectionFromTop(firstNowPosition, 0);
 			firstId = ListView.INVALID_ROW_ID;
 			mScrollToNow = false;
 		} else if (mScrollToNow) {
-			if (firstNowPosition != ListView.INVALID_POSITION) {
-				firstNowPosition = ((SimpleSectionedListAdapter) getListAdapter())
-						.positionToSectionedPosition(firstNowPosition);
+			if (agenda.nowPosition != ListView.INVALID_POSITION) {
+				firstNowPosition = adapter
+						.positionToSectionedPosition(agenda.nowPosition);
 				mScrollToNow = false;
 			} else
-				firstNowPosition = ((SimpleSectionedListAdapter) getListAdapter())
-						.positionToSectionedPosition(cursor.getCount());
+				firstNowPosition = adapter
+						.positionToSectionedPosition(eventCount);
 
 			lv.setSelectionFromTop(firstNowPosition, 0);
 			todaysPosition = firstNowPosition;
@@ -520,7 +417,7 @@ public class EventListFragment extends ListFragment implements
 	}
 
 	@Override
-	public void onLoaderReset(Loader<Cursor> arg0) {
+	public void onLoaderReset(Loader<AgendaLoader.Agenda> loader) {
 	}
 
 	/**
@@ -553,20 +450,37 @@ public class EventListFragment extends ListFragment implements
 			if (getActivity() == null)
 				return;
 
-			Loader<Cursor> loader = getLoaderManager().getLoader(0);
+			Loader<AgendaLoader.Agenda> loader = getLoaderManager()
+					.getLoader(0);
 			if (loader != null)
-				loader.forceLoad();
+				((AgendaLoader) loader).reload();
 		}
 	};
 
 	/**
-	 * Restarts the initial loader for this fragment
+	 * Moves the loader on to the current head and tail, only the events which
+	 * aren't already loaded are queried
 	 */
-	private void restartLoader() {
-		if (isAdded())
+	private void extendWindow() {
+		if (!isAdded())
+			return;
+
+		Loader<AgendaLoader.Agenda> loader = getLoaderManager().getLoader(0);
+		if (loader != null)
+			((AgendaLoader) loader).setWindow(toUtc(head), toUtc(tail));
+		else
 			getLoaderManager().restartLoader(0, null, this);
 	}
 
+	/**
+	 * Converts a time in the default timezone to milliseconds since epoch of
+	 * the same wall clock time in UTC, as used in the database
+	 */
+	private static long toUtc(Calendar cal) {
+		return TimetableUtils.switchTimeZone(cal, TimetableUtils.TIMEZONE_UTC)
+				.getTimeInMillis();
+	}
+
 	private class QueryEventsRemainingTask extends
 			AsyncTask<Void, Void, Boolean> {
 
@@ -593,7 +507,7 @@ public class EventListFragment extends ListFragment implements
 		@Override
 		protected void onPostExecute(Boolean result) {
 			if (result) // events exist, attempt to load them
-				restartLoader();
+				extendWindow();
 			else {
 				getActivity().findViewById(android.R.id.empty).setVisibility(
 						View.GONE); // hide empty view
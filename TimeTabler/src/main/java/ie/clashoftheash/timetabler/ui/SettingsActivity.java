@@ -21,6 +21,7 @@ import ie.clashoftheash.timetabler.authenticator.AccountUtils;
 import ie.clashoftheash.timetabler.provider.Timetable;
 import ie.clashoftheash.timetabler.provider.TimetableUtils;
 import ie.clashoftheash.timetabler.ui.dialogs.RemoveAccountFragment;
+import ie.clashoftheash.timetabler.ui.dialogs.SyncLogFragment;
 
 import java.util.List;
 
@@ -69,7 +70,8 @@ public class SettingsActivity extends PreferenceActivity implements
 
 	private static ListPreference syncFreqPreference;
 
-	private static String prefKeyProgrammeCode, prefKeyYear, prefKeyFreq;
+	private static String prefKeyProgrammeCode, prefKeyYear, prefKeyFreq,
+			prefKeySyncLog;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -82,6 +84,7 @@ public class SettingsActivity extends PreferenceActivity implements
 		prefKeyProgrammeCode = getString(R.string.pref_key_programme_code);
 		prefKeyYear = getString(R.string.pref_key_year);
 		prefKeyFreq = getString(R.string.pref_key_sync_frequency);
+		prefKeySyncLog = getString(R.string.pref_key_sync_log);
 	}
 
 	@Override
@@ -327,6 +330,24 @@ public class SettingsActivity extends PreferenceActivity implements
 						""));
 	}
 
+	/**
+	 * Shows the log of recent syncs when the sync log preference is clicked
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void bindSyncLogPreference(final PreferenceFragment fragment) {
+		fragment.findPreference(prefKeySyncLog).setOnPreferenceClickListener(
+				new Preference.OnPreferenceClickListener() {
+
+					@Override
+					public boolean onPreferenceClick(Preference preference) {
+						new SyncLogFragment().show(
+								fragment.getFragmentManager(),
+								"SyncLogFragment");
+						return true;
+					}
+				});
+	}
+
 	/**
 	 * This fragment shows all preferences. It is used when the activity is show
 	 * a single-pane settings UI.
@@ -371,6 +392,8 @@ public class SettingsActivity extends PreferenceActivity implements
 			bindPreferenceSummaryToValue(findPreference(prefKeyProgrammeCode));
 			bindPreferenceSummaryToValue(findPreference(prefKeyYear));
 			bindPreferenceSummaryToValue(syncFreqPreference);
+
+			bindSyncLogPreference(this);
 		}
 
 	}
@@ -451,6 +474,8 @@ public class SettingsActivity extends PreferenceActivity implements
 		public void onCreate(Bundle savedInstanceState) {
 			super.onCreate(savedInstanceState);
 			addPreferencesFromResource(R.xml.pref_about_support);
+
+			bindSyncLogPreference(this);
 		}
 	}
 
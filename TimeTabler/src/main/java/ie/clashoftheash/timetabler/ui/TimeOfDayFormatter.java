@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.ui;
+
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Formats the times held in the database for display. Times in the database
+ * are the wall clock time in UTC, so the time of day shown only depends on
+ * the time of day held. Events start and end at a handful of different times
+ * of day, each is formatted once and reused.
+ * <p>
+ * A formatter isn't thread safe and should only be used by the thread which
+ * created it.
+ */
+class TimeOfDayFormatter {
+
+	private static final long MILLIS_IN_MINUTE = 60 * 1000;
+	private static final int MINUTES_IN_DAY = 24 * 60;
+
+	private final DateFormat mFormat;
+	private final TimeZone mTimeZone = TimeZone.getDefault();
+	private final Calendar mCalendar = Calendar.getInstance(mTimeZone);
+
+	/**
+	 * Formatted time for each minute of the day, filled in as used
+	 */
+	private final String[] mFormatted = new String[MINUTES_IN_DAY];
+
+	/**
+	 * @param format
+	 *            format of the times in the default timezone
+	 */
+	TimeOfDayFormatter(DateFormat format) {
+		mFormat = format;
+	}
+
+	/**
+	 * @param time
+	 *            time held in the database
+	 * @return time of day of the time formatted for display
+	 */
+	String format(long time) {
+		int minute = (int) ((time / MILLIS_IN_MINUTE) % MINUTES_IN_DAY);
+		if (minute < 0)
+			minute += MINUTES_IN_DAY;
+
+		String formatted = mFormatted[minute];
+		if (formatted == null) {
+			mCalendar.clear();
+			mCalendar.set(Calendar.HOUR_OF_DAY, minute / 60);
+			mCalendar.set(Calendar.MINUTE, minute % 60);
+
+			formatted = mFormat.format(mCalendar.getTime());
+			mFormatted[minute] = formatted;
+		}
+
+		return formatted;
+	}
+
+	/**
+	 * Converts a time held in the database to the instant with the same wall
+	 * clock time in the default timezone, which can be compared against
+	 * {@link System#currentTimeMillis()}
+	 */
+	long toLocal(long time) {
+		// The offset at the instant is needed to find the instant, so the
+		// offset either side of it is tried to handle a change of offset
+		long local = time - mTimeZone.getOffset(time);
+		return time - mTimeZone.getOffset(local);
+	}
+
+}
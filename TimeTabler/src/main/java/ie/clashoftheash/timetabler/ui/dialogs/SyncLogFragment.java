@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.ui.dialogs;
+
+import ie.clashoftheash.timetabler.R;
+import ie.clashoftheash.timetabler.sync.SyncMetrics;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+/**
+ * Shows the time taken by each stage of recent syncs
+ */
+public class SyncLogFragment extends DialogFragment {
+
+	@Override
+	public Dialog onCreateDialog(Bundle savedInstanceState) {
+		String log = SyncMetrics.readLog(getActivity());
+
+		if (TextUtils.isEmpty(log))
+			log = getString(R.string.message_sync_log_empty);
+
+		return new AlertDialog.Builder(getActivity())
+				.setTitle(R.string.pref_title_sync_log).setMessage(log)
+				.setPositiveButton(R.string.action_done, null).create();
+	}
+
+}
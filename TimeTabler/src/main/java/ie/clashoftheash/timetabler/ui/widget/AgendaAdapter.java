@@ -17,128 +17,245 @@
 package ie.clashoftheash.timetabler.ui.widget;
 
 import ie.clashoftheash.timetabler.R;
-import ie.clashoftheash.timetabler.provider.TimetableProvider;
-import ie.clashoftheash.timetabler.provider.TimetableUtils;
 
-import java.util.Calendar;
-import java.util.TimeZone;
+import java.util.Collections;
+import java.util.List;
 
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.text.format.DateFormat;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.LinearLayout.LayoutParams;
-import android.widget.SimpleCursorAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
 
-public class AgendaAdapter extends SimpleCursorAdapter {
+public class AgendaAdapter extends BaseAdapter {
+
+	/**
+	 * Heights in pixels of the divider below an event and of the divider below
+	 * the last event to have finished
+	 */
+	private static final int DIVIDER_HEIGHT = 1;
+	private static final int DIVIDER_HEIGHT_LAST_ENDED = 5;
+
+	/**
+	 * An event shown in the agenda
+	 */
+	public static class Event {
+		public final long id;
+		public final String eventType;
+		public final String module;
+		public final String lecturer;
+		public final String location;
+
+		/**
+		 * Start and end of the event in UTC
+		 */
+		public final long start, end;
+
+		/**
+		 * Start and end of the event formatted for display
+		 */
+		public final String startTime, endTime;
+
+		/**
+		 * End of the event as an instant in the default timezone, so it can be
+		 * compared against {@link System#currentTimeMillis()}
+		 */
+		public final long localEnd;
+
+		public Event(long id, String eventType, String module,
+				String lecturer, String location, long start, long end,
+				String startTime, String endTime, long localEnd) {
+			this.id = id;
+			this.eventType = eventType;
+			this.module = module;
+			this.lecturer = lecturer;
+			this.location = location;
+			this.start = start;
+			this.end = end;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.localEnd = localEnd;
+		}
+	}
+
+	/**
+	 * References to the views of an agenda block so they only need to be
+	 * found once
+	 */
+	private static class ViewHolder {
+		ViewGroup time;
+		TextView startTime, endTime;
+		TextView eventType, module, lecturer, location;
+		View divider, overlay;
+	}
 
-	private final Context mContext;
 	private final LayoutInflater inflater;
-	private final Resources res;
 
-	public AgendaAdapter(Context context, int layout, String[] from, int[] to) {
-		super(context, layout, null, from, to, 0);
-		mContext = context;
+	/**
+	 * Event types with a colour and the colour of each
+	 */
+	private final String[] mColouredTypes;
+	private final int[] mTypeColours;
+
+	private final int mTimeTextColour, mTimeTextColourUncoloured;
+	private final int mTransparent;
+	private final int mDividerColour, mDividerColourEnded;
+	private final int mTimeWidth;
+
+	/**
+	 * Minimum width of the time column, only set when the user isn't using a
+	 * 24 hour clock so the column keeps a consistent size
+	 */
+	private int mMinTimeWidth;
+
+	private List<Event> mEvents = Collections.emptyList();
+
+	public AgendaAdapter(Context context) {
 		inflater = LayoutInflater.from(context);
-		res = context.getResources();
+
+		Resources res = context.getResources();
+
+		mColouredTypes = new String[] { context.getString(R.string.lecture),
+				context.getString(R.string.practical),
+				context.getString(R.string.tutorial),
+				context.getString(R.string.seminar) };
+		mTypeColours = new int[] { res.getColor(R.color.lecture),
+				res.getColor(R.color.practical),
+				res.getColor(R.color.tutorial), res.getColor(R.color.seminar) };
+
+		mTimeTextColour = res.getColor(android.R.color.primary_text_dark);
+		mTimeTextColourUncoloured = res
+				.getColor(android.R.color.primary_text_light);
+		mTransparent = res.getColor(android.R.color.transparent);
+		mDividerColour = res.getColor(android.R.color.darker_gray);
+		mDividerColourEnded = res.getColor(android.R.color.black);
+		mTimeWidth = (int) res.getDimension(R.dimen.list_agenda_time_width);
+
+		mMinTimeWidth = DateFormat.is24HourFormat(context) ? 0 : mTimeWidth;
+	}
+
+	/**
+	 * Replaces the events shown by the adapter
+	 * 
+	 * @param is24HourFormat
+	 *            whether the times of the events were formatted using a 24
+	 *            hour clock
+	 */
+	public void setEvents(List<Event> events, boolean is24HourFormat) {
+		mEvents = events;
+		mMinTimeWidth = is24HourFormat ? 0 : mTimeWidth;
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public int getCount() {
+		return mEvents.size();
 	}
 
 	@Override
-	public View newView(Context context, Cursor cursor, ViewGroup parent) {
-		return inflater.inflate(R.layout.list_item_agenda_block, parent, false);
+	public Event getItem(int position) {
+		return mEvents.get(position);
 	}
 
 	@Override
-	public void bindView(View view, Context context, Cursor cursor) {
-		super.bindView(view, context, cursor);
-
-		String eventType = cursor
-				.getString(TimetableProvider.READ_EVENT_EVENT_TYPE_INDEX);
-
-		((TextView) view.findViewById(R.id.module)).setText(cursor
-				.getString(TimetableProvider.READ_EVENT_MODULE_INDEX));
-
-		// Gather references to needed time views
-		final ViewGroup timeView = (ViewGroup) view.findViewById(R.id.time);
-		final TextView startTimeView = (TextView) view
-				.findViewById(R.id.start_time);
-		final TextView endTimeView = (TextView) view
-				.findViewById(R.id.end_time);
-
-		// Reset text colours in case view is reused
-		startTimeView.setTextColor(res
-				.getColor(android.R.color.primary_text_dark));
-		endTimeView.setTextColor(res
-				.getColor(android.R.color.primary_text_dark));
-
-		if (eventType.equals(mContext.getString(R.string.lecture))) {
-			timeView.setBackgroundColor(res.getColor(R.color.lecture));
-		} else if (eventType.equals(mContext.getString(R.string.practical))) {
-			timeView.setBackgroundColor(res.getColor(R.color.practical));
-		} else if (eventType.equals(mContext.getString(R.string.tutorial))) {
-			timeView.setBackgroundColor(res.getColor(R.color.tutorial));
-		} else if (eventType.equals(mContext.getString(R.string.seminar))) {
-			timeView.setBackgroundColor(res.getColor(R.color.seminar));
+	public long getItemId(int position) {
+		return mEvents.get(position).id;
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View view = convertView;
+		if (view == null) {
+			view = inflater.inflate(R.layout.list_item_agenda_block, parent,
+					false);
+
+			ViewHolder holder = new ViewHolder();
+			holder.time = (ViewGroup) view.findViewById(R.id.time);
+			holder.startTime = (TextView) view.findViewById(R.id.start_time);
+			holder.endTime = (TextView) view.findViewById(R.id.end_time);
+			holder.eventType = (TextView) view.findViewById(R.id.event_type);
+			holder.module = (TextView) view.findViewById(R.id.module);
+			holder.lecturer = (TextView) view.findViewById(R.id.lecturer);
+			holder.location = (TextView) view.findViewById(R.id.location);
+			holder.divider = view.findViewById(R.id.divider);
+			holder.overlay = view.findViewById(R.id.overlay);
+			view.setTag(holder);
+		}
+
+		bindView((ViewHolder) view.getTag(), position);
+
+		return view;
+	}
+
+	private void bindView(ViewHolder holder, int position) {
+		Event event = mEvents.get(position);
+
+		holder.eventType.setText(event.eventType);
+		holder.module.setText(event.module);
+		holder.lecturer.setText(event.lecturer);
+		holder.location.setText(event.location);
+
+		holder.startTime.setText(event.startTime);
+		holder.endTime.setText(event.endTime);
+
+		int typeIndex = indexOfType(event.eventType);
+		int timeTextColour;
+		if (typeIndex >= 0) {
+			holder.time.setBackgroundColor(mTypeColours[typeIndex]);
+			timeTextColour = mTimeTextColour;
+		} else {
+			holder.time.setBackgroundColor(mTransparent);
+			timeTextColour = mTimeTextColourUncoloured;
+		}
+		holder.startTime.setTextColor(timeTextColour);
+		holder.endTime.setTextColor(timeTextColour);
+
+		holder.time.setMinimumWidth(mMinTimeWidth);
+
+		// Whether an event has finished is worked out here rather than when
+		// loading so it stays right as time passes without a reload
+		long now = System.currentTimeMillis();
+		boolean ended = event.localEnd < now;
+
+		int dividerHeight = DIVIDER_HEIGHT;
+		if (ended) {
+			holder.overlay.setVisibility(View.VISIBLE);
+			holder.divider.setBackgroundColor(mDividerColourEnded);
+
+			// The last event to have finished has a thicker divider
+			if (position + 1 >= mEvents.size()
+					|| mEvents.get(position + 1).localEnd >= now)
+				dividerHeight = DIVIDER_HEIGHT_LAST_ENDED;
 		} else {
-			startTimeView.setTextColor(res
-					.getColor(android.R.color.primary_text_light));
-			endTimeView.setTextColor(res
-					.getColor(android.R.color.primary_text_light));
-			timeView.setBackgroundColor(res
-					.getColor(android.R.color.transparent));
+			holder.overlay.setVisibility(View.GONE);
+			holder.divider.setBackgroundColor(mDividerColour);
+		}
+
+		ViewGroup.LayoutParams params = holder.divider.getLayoutParams();
+		if (params.height != dividerHeight) {
+			params.height = dividerHeight;
+			holder.divider.setLayoutParams(params);
+		}
+	}
+
+	/**
+	 * @return index of the event type in the coloured types or -1 if it
+	 *         doesn't have a colour
+	 */
+	private int indexOfType(String eventType) {
+		for (int i = 0; i < mColouredTypes.length; i++) {
+			if (mColouredTypes[i].equals(eventType))
+				return i;
 		}
 
-		java.text.DateFormat timeFormat = DateFormat.getTimeFormat(mContext);
-
-		Calendar start = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
-		start.setTimeInMillis(cursor
-				.getLong(TimetableProvider.READ_EVENT_START_INDEX));
-
-		start = TimetableUtils.switchTimeZone(start, TimeZone.getDefault());
-
-		Calendar end = Calendar.getInstance(TimetableUtils.TIMEZONE_UTC);
-		end.setTimeInMillis(cursor
-				.getLong(TimetableProvider.READ_EVENT_END_INDEX));
-
-		end = TimetableUtils.switchTimeZone(end, TimeZone.getDefault());
-
-		setViewText(startTimeView, timeFormat.format(start.getTime()));
-		setViewText(endTimeView, timeFormat.format(end.getTime()));
-
-		View divider = view.findViewById(R.id.divider);
-
-		// Reset divider back to previous settings in case of reused view
-		divider.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, 1));
-		divider.setBackgroundColor(res.getColor(android.R.color.darker_gray));
-
-		if (end.before(Calendar.getInstance())) {
-			view.findViewById(R.id.overlay).setVisibility(View.VISIBLE);
-			try {
-				if (getView(cursor.getPosition() + 1, null, null).findViewById(
-						R.id.overlay).getVisibility() == View.GONE)
-					divider.setLayoutParams(new LayoutParams(
-							LayoutParams.MATCH_PARENT, 5));
-				divider.setBackgroundColor(res.getColor(android.R.color.black));
-			} catch (IllegalStateException e) {
-				// Exception occurs if no events loaded after this event,
-				// therefore this event should have the thicker divider
-				divider.setLayoutParams(new LayoutParams(
-						LayoutParams.MATCH_PARENT, 5));
-				divider.setBackgroundColor(res.getColor(android.R.color.black));
-			}
-		} else
-			view.findViewById(R.id.overlay).setVisibility(View.GONE);
-
-		// if user isn't using 24 hour clock set min width for time column
-		// to keep consistent size
-		if (!DateFormat.is24HourFormat(mContext))
-			timeView.setMinimumWidth((int) res
-					.getDimension(R.dimen.list_agenda_time_width));
-		else
-			timeView.setMinimumWidth(0);
+		return -1;
 	}
-}
\ No newline at end of file
+}
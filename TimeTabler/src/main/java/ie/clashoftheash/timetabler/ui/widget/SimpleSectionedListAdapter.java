@@ -24,7 +24,6 @@ import java.util.Comparator;
 
 import android.content.Context;
 import android.database.DataSetObserver;
-import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -39,7 +38,15 @@ public class SimpleSectionedListAdapter extends BaseAdapter {
 	private final int[] mTo;
 	private final LayoutInflater mLayoutInflater;
 	private final ListAdapter mBaseAdapter;
-	private final SparseArray<Section> mSections = new SparseArray<Section>();
+
+	/**
+	 * Sections sorted by position along with the position of the first item
+	 * and of the header of each, kept in arrays so positions can be mapped
+	 * with a binary search
+	 */
+	private Section[] mSections = new Section[0];
+	private int[] mFirstPositions = new int[0];
+	private int[] mSectionedPositions = new int[0];
 
 	public static class Section {
 		private final int firstPosition;
@@ -53,6 +60,23 @@ public class SimpleSectionedListAdapter extends BaseAdapter {
 			this.showOverlay = showOverlay;
 		}
 
+		public int getFirstPosition() {
+			return firstPosition;
+		}
+
+		/**
+		 * Creates a copy of this section for when items are added before it
+		 * 
+		 * @param count
+		 *            number of items added before this section
+		 * @param showOverlay
+		 *            whether the moved section shows the overlay
+		 * @return the moved section
+		 */
+		public Section offset(int count, boolean showOverlay) {
+			return new Section(firstPosition + count, text, showOverlay);
+		}
+
 	}
 
 	public SimpleSectionedListAdapter(Context context, int sectionResourceId,
@@ -78,8 +102,6 @@ public class SimpleSectionedListAdapter extends BaseAdapter {
 	}
 
 	public void setSections(Section[] sections) {
-		mSections.clear();
-
 		Arrays.sort(sections, new Comparator<Section>() {
 			@Override
 			public int compare(Section o, Section o1) {
@@ -88,25 +110,26 @@ public class SimpleSectionedListAdapter extends BaseAdapter {
 			}
 		});
 
-		int offset = 0; // offset positions for the headers we're adding
-		for (Section section : sections) {
+		int[] firstPositions = new int[sections.length];
+		int[] sectionedPositions = new int[sections.length];
+
+		// offset positions for the headers we're adding
+		for (int offset = 0; offset < sections.length; offset++) {
+			Section section = sections[offset];
 			section.sectionedPosition = section.firstPosition + offset;
-			mSections.append(section.sectionedPosition, section);
-			++offset;
+			firstPositions[offset] = section.firstPosition;
+			sectionedPositions[offset] = section.sectionedPosition;
 		}
 
+		mSections = sections;
+		mFirstPositions = firstPositions;
+		mSectionedPositions = sectionedPositions;
+
 		notifyDataSetChanged();
 	}
 
 	public int positionToSectionedPosition(int position) {
-		int offset = 0;
-		for (int i = 0; i < mSections.size(); i++) {
-			if (mSections.valueAt(i).firstPosition > position) {
-				break;
-			}
-			++offset;
-		}
-		return position + offset;
+		return position + countAtOrBefore(mFirstPositions, position);
 	}
 
 	public int sectionedPositionToPosition(int sectionedPosition) {
@@ -114,35 +137,55 @@ public class SimpleSectionedListAdapter extends BaseAdapter {
 			return ListView.INVALID_POSITION;
 		}
 
-		int offset = 0;
-		for (int i = 0; i < mSections.size(); i++) {
-			if (mSections.valueAt(i).sectionedPosition > sectionedPosition) {
-				break;
-			}
-			--offset;
-		}
-		return sectionedPosition + offset;
+		return sectionedPosition
+				- countAtOrBefore(mSectionedPositions, sectionedPosition);
 	}
 
 	public boolean isSectionHeaderPosition(int position) {
-		return mSections.get(position) != null;
+		return indexOfSection(position) >= 0;
+	}
+
+	/**
+	 * @return index of the section with its header at the position or a
+	 *         negative number if there isn't one
+	 */
+	private int indexOfSection(int position) {
+		return Arrays.binarySearch(mSectionedPositions, position);
+	}
+
+	/**
+	 * @return number of values in the sorted array which are less than or
+	 *         equal to the value
+	 */
+	private static int countAtOrBefore(int[] sorted, int value) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] <= value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
 	}
 
 	@Override
 	public int getCount() {
-		return (mValid ? mBaseAdapter.getCount() + mSections.size() : 0);
+		return (mValid ? mBaseAdapter.getCount() + mSections.length : 0);
 	}
 
 	@Override
 	public Object getItem(int position) {
-		return isSectionHeaderPosition(position) ? mSections.get(position)
-				: mBaseAdapter.getItem(sectionedPositionToPosition(position));
+		int index = indexOfSection(position);
+		return index >= 0 ? mSections[index] : mBaseAdapter
+				.getItem(sectionedPositionToPosition(position));
 	}
 
 	@Override
 	public long getItemId(int position) {
-		return isSectionHeaderPosition(position) ? Integer.MAX_VALUE
-				- mSections.indexOfKey(position) : mBaseAdapter
+		int index = indexOfSection(position);
+		return index >= 0 ? Integer.MAX_VALUE - index : mBaseAdapter
 				.getItemId(sectionedPositionToPosition(position));
 	}
 
@@ -181,7 +224,9 @@ public class SimpleSectionedListAdapter extends BaseAdapter {
 
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
-		if (isSectionHeaderPosition(position)) {
+		int index = indexOfSection(position);
+		if (index >= 0) {
+			Section section = mSections[index];
 			ViewGroup view = (ViewGroup) convertView;
 			if (view == null) {
 				view = (ViewGroup) mLayoutInflater.inflate(mSectionResourceId,
@@ -192,7 +237,7 @@ public class SimpleSectionedListAdapter extends BaseAdapter {
 			for (int i = 0; i < count; i++) {
 				View v = view.findViewById(mTo[i]);
 				if (v != null) {
-					String text = mSections.get(position).text[i];
+					String text = section.text[i];
 					if (text == null)
 						text = "";
 
@@ -207,7 +252,7 @@ public class SimpleSectionedListAdapter extends BaseAdapter {
 				}
 			}
 
-			if (mSections.get(position).showOverlay)
+			if (section.showOverlay)
 				view.findViewById(R.id.overlay).setVisibility(View.VISIBLE);
 			else
 				view.findViewById(R.id.overlay).setVisibility(View.GONE);
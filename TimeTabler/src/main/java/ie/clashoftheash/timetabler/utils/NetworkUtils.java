@@ -26,9 +26,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * A class to handle network related operations
@@ -37,6 +41,8 @@ import java.net.URL;
  */
 public class NetworkUtils {
 
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	private final Context mContext;
 
 	public NetworkUtils(Context context) {
@@ -99,6 +105,27 @@ public class NetworkUtils {
 	 */
 	public HttpURLConnection openConnection(URL url) throws IOException,
 			IllegalArgumentException {
+		return openConnection(url, null, null);
+	}
+
+	/**
+	 * Opens a Http connection with the url provided, only asking for the
+	 * content if it has changed since it was last downloaded
+	 * 
+	 * @param url
+	 *            url to open connection to
+	 * @param etag
+	 *            ETag sent when the content was last downloaded, may be null
+	 * @param lastModified
+	 *            Last-Modified date sent when the content was last
+	 *            downloaded, may be null
+	 * @return reference to the opened http connection, its response code is
+	 *         {@link HttpURLConnection#HTTP_NOT_MODIFIED} if the content
+	 *         hasn't changed
+	 * @throws IOException
+	 */
+	public HttpURLConnection openConnection(URL url, String etag,
+			String lastModified) throws IOException, IllegalArgumentException {
 		if (url == null)
 			throw new IllegalArgumentException("Url can't be null");
 
@@ -107,32 +134,85 @@ public class NetworkUtils {
 		conn.setConnectTimeout(15000/* milliseconds */);
 		conn.setRequestMethod("GET");
 
-		if (conn.getResponseCode() == HttpURLConnection.HTTP_OK)
+		// Content is decoded in openReader
+		conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+		if (etag != null)
+			conn.setRequestProperty("If-None-Match", etag);
+		if (lastModified != null)
+			conn.setRequestProperty("If-Modified-Since", lastModified);
+
+		int response = conn.getResponseCode();
+		if (response == HttpURLConnection.HTTP_OK
+				|| response == HttpURLConnection.HTTP_NOT_MODIFIED)
 			return conn;
 		throw new IOException();
 	}
 
 	/**
-	 * Downloads and returns content of HttpURLConnection passed
+	 * Opens a reader over the content of the HttpURLConnection passed so it
+	 * can be processed while it is being downloaded. Compressed content is
+	 * decompressed and decoded with the charset given by the server.
 	 * 
 	 * @param conn
-	 *            http connection to downloads
-	 * @return string holding the data downloaded
+	 *            http connection to read
+	 * @return buffered reader over the content of the connection
 	 * @throws IOException
 	 */
-	public String downloadURL(HttpURLConnection conn) throws IOException {
-		InputStream stream = conn.getInputStream();
+	public Reader openReader(HttpURLConnection conn) throws IOException {
+		return openReader(conn, conn.getInputStream());
+	}
 
-		InputStreamReader reader = new InputStreamReader(stream);
-		BufferedReader bufferedReader = new BufferedReader(reader);
+	/**
+	 * Opens a reader over a stream of the content of the HttpURLConnection
+	 * passed. The headers of the connection are used to decode the stream.
+	 * 
+	 * @param conn
+	 *            http connection the stream is from
+	 * @param stream
+	 *            input stream of the connection, which may have been wrapped
+	 * @return buffered reader over the content of the stream
+	 * @throws IOException
+	 */
+	public Reader openReader(HttpURLConnection conn, InputStream stream)
+			throws IOException {
+		String encoding = conn.getContentEncoding();
+		if ("gzip".equalsIgnoreCase(encoding))
+			stream = new GZIPInputStream(stream);
+		else if ("deflate".equalsIgnoreCase(encoding))
+			stream = new InflaterInputStream(stream);
+
+		return new BufferedReader(new InputStreamReader(stream,
+				getCharset(conn.getContentType())));
+	}
 
-		String s;
-		StringBuilder builder = new StringBuilder();
+	/**
+	 * Finds the charset declared in a Content-Type header
+	 * 
+	 * @param contentType
+	 *            value of the Content-Type header, may be null
+	 * @return the declared charset or UTF-8 if there isn't one or it isn't
+	 *         supported
+	 */
+	private static Charset getCharset(String contentType) {
+		if (contentType != null) {
+			for (String param : contentType.split(";")) {
+				param = param.trim();
 
-		while ((s = bufferedReader.readLine()) != null)
-			builder.append(s);
+				if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+					String name = param.substring(8).replace("\"", "").trim();
+
+					try {
+						return Charset.forName(name);
+					} catch (IllegalArgumentException e) {
+						// Unknown or illegal charset, use default
+						break;
+					}
+				}
+			}
+		}
 
-		return builder.toString();
+		return UTF_8;
 	}
 
 	/**
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Ian Kavanagh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.clashoftheash.timetabler.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers what was last processed for each timetable page so unchanged
+ * pages don't need to be processed again. For each page the ETag and
+ * Last-Modified validators sent by the server are kept along with a hash of
+ * the timetable on the page.
+ *
+ * @author Ian Kavanagh
+ */
+public class PageCache {
+
+	private static final String PREFS_NAME = "page_cache";
+
+	private static final String PREFIX_ETAG = "etag_";
+	private static final String PREFIX_LAST_MODIFIED = "last_modified_";
+	private static final String PREFIX_HASH = "hash_";
+
+	private final SharedPreferences mPrefs;
+
+	public PageCache(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * Builds the key identifying a timetable page
+	 *
+	 * @param programmeCode
+	 *            users programme code
+	 * @param year
+	 *            users year of study
+	 * @param semester
+	 *            semester of the page 1 or 2
+	 * @return key for the page
+	 */
+	public static String getKey(String programmeCode, String year,
+			int semester) {
+		return programmeCode + "_" + year + "_" + semester;
+	}
+
+	/**
+	 * @return ETag last sent for the page or null if there wasn't one
+	 */
+	public String getETag(String key) {
+		return mPrefs.getString(PREFIX_ETAG + key, null);
+	}
+
+	/**
+	 * @return Last-Modified date last sent for the page or null if there
+	 *         wasn't one
+	 */
+	public String getLastModified(String key) {
+		return mPrefs.getString(PREFIX_LAST_MODIFIED + key, null);
+	}
+
+	/**
+	 * @return hash of the timetable last processed for the page or null if it
+	 *         hasn't been processed
+	 */
+	public String getHash(String key) {
+		return mPrefs.getString(PREFIX_HASH + key, null);
+	}
+
+	/**
+	 * Records that the page has been processed, this should only be called
+	 * once the changes from the page have been saved
+	 *
+	 * @param key
+	 *            key for the page
+	 * @param etag
+	 *            ETag sent with the page, may be null
+	 * @param lastModified
+	 *            Last-Modified date sent with the page, may be null
+	 * @param hash
+	 *            hash of the timetable on the page, may be null
+	 */
+	public void put(String key, String etag, String lastModified, String hash) {
+		SharedPreferences.Editor editor = mPrefs.edit();
+
+		putOrRemove(editor, PREFIX_ETAG + key, etag);
+		putOrRemove(editor, PREFIX_LAST_MODIFIED + key, lastModified);
+		putOrRemove(editor, PREFIX_HASH + key, hash);
+
+		editor.apply();
+	}
+
+	private static void putOrRemove(SharedPreferences.Editor editor,
+			String key, String value) {
+		if (value == null)
+			editor.remove(key);
+		else
+			editor.putString(key, value);
+	}
+
+}